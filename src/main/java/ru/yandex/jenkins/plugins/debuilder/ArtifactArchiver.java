@@ -0,0 +1,224 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+/**
+ * Archives all the files of a built package (binaries, sources and upload control files) in a single pass:
+ * the node lists the build directory once and streams every file through one pipe,
+ * computing its SHA-256 and MD5 on the way, and the controller writes the files and an {@link ArtifactManifest}.
+ */
+public class ArtifactArchiver {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String[] SUFFIXES = new String[] {".deb", ".udeb", ".ddeb", ".dsc", ".changes", ".buildinfo", ".diff.gz"};
+
+	private final Runner runner;
+
+	public ArtifactArchiver(Runner runner) {
+		this.runner = runner;
+	}
+
+	/**
+	 * @param directory
+	 *            Directory where debuild put the package files
+	 * @param source
+	 *            Source package name
+	 * @param version
+	 *            Full version of the package, possibly with epoch
+	 * @param target
+	 *            Directory to archive files into
+	 * @return manifest of the archived files, also written to <b>target</b>
+	 */
+	public ArtifactManifest archive(FilePath directory, String source, String version, File target) throws IOException, InterruptedException {
+		if (!target.isDirectory() && !target.mkdirs()) {
+			throw new IOException("Failed to create " + target);
+		}
+
+		// works the same whether the directory is on the controller or not, unlike a remoting Pipe
+		FastPipedInputStream sink = new FastPipedInputStream();
+		OutputStream stream = new RemoteOutputStream(new FastPipedOutputStream(sink));
+		Future<List<ArtifactManifest.Entry>> sent = directory.actAsync(new Sender(source, version, stream));
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(sink, BUFFER_SIZE));
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			String name;
+			while ((name = in.readUTF()).length() > 0) {
+				long size = in.readLong();
+				runner.announce("Archiving file <{0}> as a build artifact", name);
+				receive(in, new File(target, name), size, buffer);
+				runner.countBytes(size);
+				Metrics.get().artifact(size);
+			}
+		} catch (IOException e) {
+			// the stream breaks when the sender fails, its own error is more telling
+			getSent(sent);
+			throw e;
+		} finally {
+			in.close();
+		}
+
+		List<ArtifactManifest.Entry> entries = getSent(sent);
+
+		ArtifactManifest manifest = new ArtifactManifest(entries);
+		manifest.write(new File(target, ArtifactManifest.getFileName(source, stripEpoch(version))));
+		return manifest;
+	}
+
+	private List<ArtifactManifest.Entry> getSent(Future<List<ArtifactManifest.Entry>> sent) throws IOException, InterruptedException {
+		try {
+			return sent.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to send artifacts: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private void receive(InputStream in, File file, long size, byte[] buffer) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			long left = size;
+			while (left > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (read < 0) {
+					throw new IOException("Stream ended in the middle of " + file.getName());
+				}
+				out.write(buffer, 0, read);
+				left -= read;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return version as it appears in file names, i.e. without epoch
+	 */
+	static String stripEpoch(String version) {
+		int colon = version.indexOf(':');
+		return colon < 0 ? version : version.substring(colon + 1);
+	}
+
+	/**
+	 * Finds the package files and streams them to the controller.
+	 * Each file is framed as its name, its size and its content, an empty name ends the stream.
+	 */
+	private static final class Sender implements FileCallable<List<ArtifactManifest.Entry>> {
+		private static final long serialVersionUID = 1L;
+
+		private final String source;
+		private final String version;
+		private final OutputStream stream;
+
+		public Sender(String source, String version, OutputStream stream) {
+			this.source = source;
+			this.version = version;
+			this.stream = stream;
+		}
+
+		@Override
+		public List<ArtifactManifest.Entry> invoke(File directory, VirtualChannel channel) throws IOException, InterruptedException {
+			List<ArtifactManifest.Entry> entries = new ArrayList<ArtifactManifest.Entry>();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+			try {
+				File[] files = directory.listFiles();
+				if (files != null) {
+					Arrays.sort(files);
+					MessageDigest sha256 = newDigest("SHA-256");
+					MessageDigest md5 = newDigest("MD5");
+					byte[] buffer = new byte[BUFFER_SIZE];
+
+					for (File file: files) {
+						if (file.isFile() && isPackageFile(file.getName())) {
+							entries.add(send(file, out, sha256, md5, buffer));
+						}
+					}
+				}
+				out.writeUTF("");
+			} finally {
+				out.close();
+			}
+			return entries;
+		}
+
+		private boolean isPackageFile(String name) {
+			String plainVersion = stripEpoch(version);
+
+			// binary packages are named after themselves, not the source, so only the version can be checked
+			if (name.contains("_" + plainVersion + "_") && (name.endsWith(".deb") || name.endsWith(".udeb") || name.endsWith(".ddeb"))) {
+				return true;
+			}
+
+			if (name.startsWith(source + "_" + plainVersion)) {
+				for (String suffix: SUFFIXES) {
+					if (name.endsWith(suffix)) {
+						return true;
+					}
+				}
+				return name.contains(".tar.");
+			}
+
+			int dash = plainVersion.lastIndexOf('-');
+			String upstream = dash < 0 ? plainVersion : plainVersion.substring(0, dash);
+			return name.startsWith(source + "_" + upstream + ".orig.tar.") || name.startsWith(source + "_" + upstream + ".orig-");
+		}
+
+		private ArtifactManifest.Entry send(File file, DataOutputStream out, MessageDigest sha256, MessageDigest md5, byte[] buffer) throws IOException {
+			long size = file.length();
+			out.writeUTF(file.getName());
+			out.writeLong(size);
+
+			sha256.reset();
+			md5.reset();
+			InputStream in = new FileInputStream(file);
+			try {
+				long left = size;
+				while (left > 0) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+					if (read < 0) {
+						throw new IOException(file + " was truncated while being archived");
+					}
+					sha256.update(buffer, 0, read);
+					md5.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					left -= read;
+				}
+			} finally {
+				in.close();
+			}
+
+			return new ArtifactManifest.Entry(file.getName(), size, DebUtils.toHex(sha256.digest()), DebUtils.toHex(md5.digest()));
+		}
+
+		private static MessageDigest newDigest(String algorithm) throws IOException {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(algorithm + " is not supported by this JVM", e);
+			}
+		}
+	}
+}
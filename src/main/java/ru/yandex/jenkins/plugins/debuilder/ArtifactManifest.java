@@ -0,0 +1,121 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checksums and sizes of the files archived for a package, as computed when they were archived.
+ * Stored next to the artifacts as <b>&lt;source&gt;_&lt;version&gt;.manifest</b>, one file per line:
+ * <pre>sha256 md5 size name</pre>
+ */
+public class ArtifactManifest {
+	public static final String SUFFIX = ".manifest";
+
+	private final List<Entry> entries;
+
+	public ArtifactManifest(List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return the entry for the file with given name, or null if there is none
+	 */
+	public Entry get(String name) {
+		for (Entry entry: entries) {
+			if (entry.getName().equals(name)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return name of the manifest file of the package
+	 */
+	public static String getFileName(String source, String version) {
+		return source + "_" + version + SUFFIX;
+	}
+
+	public void write(File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			for (Entry entry: entries) {
+				writer.write(MessageFormat.format("{0} {1} {2} {3}\n", entry.getSha256(), entry.getMd5(), String.valueOf(entry.getSize()), entry.getName()));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static ArtifactManifest read(File file) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ", 4);
+				if (fields.length != 4) {
+					throw new IOException(MessageFormat.format("Malformed line <{0}> in {1}", line, file));
+				}
+				try {
+					entries.add(new Entry(fields[3], Long.parseLong(fields[2]), fields[0], fields[1]));
+				} catch (NumberFormatException e) {
+					throw new IOException(MessageFormat.format("Malformed size in line <{0}> of {1}", line, file));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return new ArtifactManifest(entries);
+	}
+
+	/**
+	 * Pojo to store checksums of a single file
+	 */
+	public static final class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final long size;
+		private final String sha256;
+		private final String md5;
+
+		public Entry(String name, long size, String sha256, String md5) {
+			this.name = name;
+			this.size = size;
+			this.sha256 = sha256;
+			this.md5 = md5;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getSha256() {
+			return sha256;
+		}
+
+		public String getMd5() {
+			return md5;
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-side content-addressed store of archived package files.
+ * Every distinct file is kept once, under its SHA-256, and build artifact directories hold relative symlinks to it.
+ * Each stored file has a list of the artifacts referencing it, by their paths relative to the Jenkins root dir,
+ * and is deleted when the last of them goes away with its build.
+ * Renamed jobs get their references moved, and a daily {@link Sweeper} drops references to artifacts deleted some other way,
+ * like by a log rotator keeping artifacts of fewer builds than the builds themselves.
+ */
+public class ArtifactStore {
+	private static final Logger LOGGER = Logger.getLogger(ArtifactStore.class.getName());
+	private static final String STORE_DIR = "debian-package-builder/artifact-store";
+	private static final String REFS_SUFFIX = ".refs";
+
+	// all the reference lists are small and updated rarely, one lock is enough
+	private static final Object LOCK = new Object();
+
+	private final File home;
+	private final File root;
+
+	public ArtifactStore() {
+		this(Jenkins.getInstance().getRootDir());
+	}
+
+	ArtifactStore(File home) {
+		this.home = home;
+		this.root = new File(home, STORE_DIR);
+	}
+
+	/**
+	 * Moves the archived files listed in the manifest into the store, replacing them with symlinks
+	 *
+	 * @param artifactsDir
+	 *            Directory the files were archived into
+	 * @param manifest
+	 *            Manifest of the archived files
+	 * @param listener
+	 *            Where to report symlink failures
+	 * @return number of bytes that did not have to be stored again since identical files were already there
+	 */
+	public long store(File artifactsDir, ArtifactManifest manifest, TaskListener listener) throws IOException, InterruptedException {
+		long saved = 0;
+
+		for (ArtifactManifest.Entry entry: manifest.getEntries()) {
+			File artifact = new File(artifactsDir, entry.getName());
+			File blob = getBlob(entry.getSha256());
+
+			synchronized (LOCK) {
+				if (blob.isFile() && blob.length() == entry.getSize()) {
+					if (!artifact.delete()) {
+						throw new IOException("Failed to delete " + artifact);
+					}
+					saved += entry.getSize();
+					Metrics.get().cache("artifact_store", true);
+				} else {
+					File directory = blob.getParentFile();
+					if (!directory.isDirectory() && !directory.mkdirs()) {
+						throw new IOException("Failed to create " + directory);
+					}
+					if (!artifact.renameTo(blob)) {
+						Util.copyFile(artifact, blob);
+						if (!artifact.delete()) {
+							throw new IOException("Failed to delete " + artifact);
+						}
+					}
+					Metrics.get().cache("artifact_store", false);
+				}
+
+				// relative to the real locations, as the link is resolved from where the build directory really is
+				Util.createSymlink(artifactsDir, getRelativePath(artifact.getParentFile().getCanonicalFile(), blob.getCanonicalFile()), entry.getName(), listener);
+				if (!artifact.exists() || !artifact.getCanonicalFile().equals(blob.getCanonicalFile())) {
+					// symlinks are not available or do not work here, keep a copy in the build
+					listener.getLogger().println("Failed to link " + artifact + " to the artifact store, keeping a copy instead");
+					LOGGER.log(Level.WARNING, "Failed to link {0} to {1}, keeping a copy instead", new Object[] {artifact, blob});
+					if (Util.isSymlink(artifact)) {
+						artifact.delete();
+					}
+					Util.copyFile(blob, artifact);
+					if (readRefs(entry.getSha256()).isEmpty()) {
+						blob.delete();
+					}
+					continue;
+				}
+
+				Set<String> refs = readRefs(entry.getSha256());
+				refs.add(toRef(artifact));
+				writeRefs(entry.getSha256(), refs);
+			}
+		}
+
+		return saved;
+	}
+
+	/**
+	 * Drops references from the artifacts of a build, deleting stored files nobody references anymore
+	 *
+	 * @param artifactsDir
+	 *            Artifacts directory of the build
+	 */
+	public void release(File artifactsDir) throws IOException {
+		File[] manifests = artifactsDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(ArtifactManifest.SUFFIX);
+			}
+		});
+
+		if (manifests == null) {
+			return;
+		}
+
+		for (File manifestFile: manifests) {
+			for (ArtifactManifest.Entry entry: ArtifactManifest.read(manifestFile).getEntries()) {
+				synchronized (LOCK) {
+					Set<String> refs = readRefs(entry.getSha256());
+					File artifact = new File(artifactsDir, entry.getName());
+					if (!refs.remove(toRef(artifact))) {
+						continue;
+					}
+
+					if (refs.isEmpty()) {
+						File blob = getBlob(entry.getSha256());
+						if (!blob.delete() && blob.exists()) {
+							LOGGER.log(Level.WARNING, "Failed to delete unreferenced {0}", blob);
+						}
+					}
+					writeRefs(entry.getSha256(), refs);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the references from the artifacts of a renamed or moved job
+	 *
+	 * @param oldDir
+	 *            Former root dir of the job
+	 * @param newDir
+	 *            Current root dir of the job
+	 */
+	public void move(File oldDir, File newDir) throws IOException {
+		String oldPrefix = toRef(oldDir) + "/";
+		String newPrefix = toRef(newDir) + "/";
+
+		for (String sha256: listStored()) {
+			synchronized (LOCK) {
+				Set<String> refs = readRefs(sha256);
+				Set<String> moved = new LinkedHashSet<String>();
+				for (String ref: refs) {
+					moved.add(ref.startsWith(oldPrefix) ? newPrefix + ref.substring(oldPrefix.length()) : ref);
+				}
+				if (!moved.equals(refs)) {
+					writeRefs(sha256, moved);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops references from artifacts that are gone, deleting stored files nobody references anymore.
+	 * Artifacts that are still there but don't lead to the stored file are only reported, since they might be the way to it nonetheless.
+	 *
+	 * @return number of stored files deleted
+	 */
+	public int sweep() throws IOException {
+		int deleted = 0;
+
+		for (String sha256: listStored()) {
+			synchronized (LOCK) {
+				File blob = getBlob(sha256);
+				File canonicalBlob = blob.getCanonicalFile();
+
+				Set<String> refs = readRefs(sha256);
+				boolean changed = false;
+				for (Iterator<String> iterator = refs.iterator(); iterator.hasNext();) {
+					File artifact = fromRef(iterator.next());
+					if (!artifact.exists() && !Util.isSymlink(artifact)) {
+						iterator.remove();
+						changed = true;
+					} else if (!artifact.getCanonicalFile().equals(canonicalBlob)) {
+						LOGGER.log(Level.WARNING, "{0} does not lead to the stored {1}, keeping both", new Object[] {artifact, blob});
+					}
+				}
+
+				if (refs.isEmpty()) {
+					if (blob.delete()) {
+						deleted++;
+					} else if (blob.exists()) {
+						LOGGER.log(Level.WARNING, "Failed to delete unreferenced {0}", blob);
+					}
+				}
+				if (changed) {
+					writeRefs(sha256, refs);
+				}
+			}
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * @return SHA-256 of every stored file and every reference list, including the lists of files already gone
+	 */
+	private Set<String> listStored() {
+		Set<String> result = new LinkedHashSet<String>();
+		File[] directories = root.listFiles();
+		if (directories == null) {
+			return result;
+		}
+
+		for (File directory: directories) {
+			String[] names = directory.list();
+			if (names == null) {
+				continue;
+			}
+			for (String name: names) {
+				if (name.endsWith(REFS_SUFFIX)) {
+					result.add(name.substring(0, name.length() - REFS_SUFFIX.length()));
+				} else if (!name.endsWith(".tmp")) {
+					result.add(name);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return path of the file relative to the Jenkins root dir, or its absolute path if it is elsewhere
+	 */
+	private String toRef(File file) {
+		String path = file.getAbsolutePath();
+		String homePath = home.getAbsolutePath() + File.separator;
+		if (!path.startsWith(homePath)) {
+			return path;
+		}
+		return path.substring(homePath.length()).replace(File.separatorChar, '/');
+	}
+
+	private File fromRef(String ref) {
+		File file = new File(ref);
+		return file.isAbsolute() ? file : new File(home, ref);
+	}
+
+	/**
+	 * @return path of the target relative to the directory, like <b>../../store/ab/abcdef</b>
+	 */
+	static String getRelativePath(File directory, File target) {
+		String[] from = directory.getAbsolutePath().split(Pattern.quote(File.separator));
+		String[] to = target.getAbsolutePath().split(Pattern.quote(File.separator));
+
+		int common = 0;
+		while (common < from.length && common < to.length - 1 && from[common].equals(to[common])) {
+			common++;
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (int i = common; i < from.length; i++) {
+			builder.append("..").append(File.separator);
+		}
+		for (int i = common; i < to.length; i++) {
+			if (i > common) {
+				builder.append(File.separator);
+			}
+			builder.append(to[i]);
+		}
+		return builder.toString();
+	}
+
+	private File getBlob(String sha256) {
+		return new File(new File(root, sha256.substring(0, 2)), sha256);
+	}
+
+	private File getRefsFile(String sha256) {
+		return new File(new File(root, sha256.substring(0, 2)), sha256 + REFS_SUFFIX);
+	}
+
+	private Set<String> readRefs(String sha256) throws IOException {
+		Set<String> refs = new LinkedHashSet<String>();
+		File file = getRefsFile(sha256);
+		if (!file.isFile()) {
+			return refs;
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0) {
+					refs.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return refs;
+	}
+
+	private void writeRefs(String sha256, Set<String> refs) throws IOException {
+		File file = getRefsFile(sha256);
+		if (refs.isEmpty()) {
+			file.delete();
+			return;
+		}
+
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for (String ref: refs) {
+				writer.write(ref);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+			throw new IOException("Failed to replace " + file);
+		}
+	}
+
+	/**
+	 * Releases the stored artifacts of deleted builds
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static final class Collector extends RunListener<Run> {
+		public Collector() {
+			super(Run.class);
+		}
+
+		@Override
+		public void onDeleted(Run run) {
+			File artifactsDir = run.getArtifactsDir();
+			if (!artifactsDir.isDirectory()) {
+				return;
+			}
+
+			try {
+				new ArtifactStore().release(artifactsDir);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to release stored artifacts of " + run, e);
+			}
+		}
+	}
+
+	/**
+	 * Moves the references of renamed jobs
+	 */
+	@Extension
+	public static final class Mover extends ItemListener {
+		@Override
+		public void onRenamed(Item item, String oldName, String newName) {
+			File newDir = item.getRootDir();
+			try {
+				new ArtifactStore().move(new File(newDir.getParentFile(), oldName), newDir);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to move stored artifact references of " + item.getFullName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Drops references from artifacts deleted without their builds, like by the log rotator
+	 */
+	@Extension
+	public static final class Sweeper extends AsyncPeriodicWork {
+		public Sweeper() {
+			super("Debian artifact store sweeper");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return DAY;
+		}
+
+		@Override
+		protected void execute(TaskListener listener) throws IOException, InterruptedException {
+			int deleted = new ArtifactStore().sweep();
+			listener.getLogger().println("Deleted " + deleted + " unreferenced stored artifacts");
+		}
+	}
+}
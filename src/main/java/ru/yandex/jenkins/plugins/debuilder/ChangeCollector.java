@@ -0,0 +1,73 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.yandex.jenkins.plugins.debuilder.DebianPackageBuilder.Change;
+
+/**
+ * Collects changes for the changelog, keeping at most a given number of them.
+ * Changes over the limit are only counted and summarised with a single "N more changes" entry.
+ * Changes made by the plugin itself (i.e. with our commit message) are dropped.
+ */
+public class ChangeCollector {
+	private final int limit;
+	private final String ourMessage;
+	private final List<Change> changes = new ArrayList<Change>();
+	private int skipped = 0;
+
+	/**
+	 * @param limit
+	 *            Maximum number of changes to keep, non-positive value means no limit
+	 * @param ourMessage
+	 *            Commit message used by the plugin
+	 */
+	public ChangeCollector(int limit, String ourMessage) {
+		this.limit = limit;
+		this.ourMessage = ourMessage;
+	}
+
+	public void add(String author, String message) {
+		if (message == null) {
+			message = "";
+		}
+
+		if (message.equals(ourMessage)) {
+			return;
+		}
+
+		if (isFull()) {
+			skipped++;
+		} else {
+			changes.add(new Change(author, message));
+		}
+	}
+
+	/**
+	 * @return true if the limit is reached and further changes are only counted
+	 */
+	public boolean isFull() {
+		return limit > 0 && changes.size() >= limit;
+	}
+
+	/**
+	 * Counts a change whose contents are not known, should only be used when {@link #isFull()}
+	 */
+	public void skip() {
+		skipped++;
+	}
+
+	/**
+	 * @return collected changes, followed by a summary entry if some were dropped
+	 */
+	public List<Change> getChanges() {
+		List<Change> result = new ArrayList<Change>(changes);
+
+		if (skipped > 0) {
+			result.add(new Change("Jenkins", MessageFormat.format("{0} more changes", Integer.toString(skipped))));
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,378 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Small append-only per-job file with SCM changes of every finished build.
+ * Lets the builder find changes since the last successful build without loading every intermediate build.
+ * Each record is prefixed with its length, so records of builds out of the requested range are skipped without decoding them.
+ * Records are kept within the limits the reader accepts: overlong strings are cut, and changes or paths over the limits are left out.
+ * Records of deleted builds are dropped when a build of the job is deleted, by hand or by the log rotator.
+ */
+public class ChangeIndex {
+	private static final Logger LOGGER = Logger.getLogger(ChangeIndex.class.getName());
+	private static final String FILE_NAME = "debian-package-builder-changes.idx";
+	private static final byte FORMAT = 1;
+
+	// the writer stays within these, so anything bigger is a corrupt file, not a reason to run out of memory
+	private static final int MAX_STRING_LENGTH = 1 << 20;
+	private static final int MAX_COUNT = 1 << 16;
+	private static final int MAX_RECORD_LENGTH = 1 << 26;
+
+	private final File file;
+
+	public ChangeIndex(AbstractProject<?, ?> project) {
+		this.file = new File(project.getRootDir(), FILE_NAME);
+	}
+
+	/**
+	 * Appends changes of given build to the index
+	 */
+	public void append(AbstractBuild<?, ?> build) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		ChangeLogSet<? extends Entry> changeSet = build.getChangeSet();
+		for (Entry entry: changeSet) {
+			records.add(new Record(entry.getAuthor().getFullName(), entry.getMsg(), entry.getAffectedPaths()));
+		}
+
+		synchronized (ChangeIndex.class) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			try {
+				write(out, build.getNumber(), records);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads changes of indexed builds with numbers in given range
+	 *
+	 * @param fromExclusive
+	 *            Builds with this number and below are skipped
+	 * @param toInclusive
+	 *            Builds with numbers above this are skipped
+	 * @return changes for every indexed build in the range, keyed by build number
+	 */
+	public Map<Integer, List<Record>> read(final int fromExclusive, final int toInclusive) {
+		final Map<Integer, List<Record>> result = new HashMap<Integer, List<Record>>();
+
+		scan(new Visitor() {
+			@Override
+			public boolean wants(int number) {
+				return number > fromExclusive && number <= toInclusive;
+			}
+
+			@Override
+			public void visit(int number, List<Record> records) {
+				result.put(number, records);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Rewrites the index without the records of given build and of the builds older than given one
+	 *
+	 * @param deleted
+	 *            Number of a deleted build
+	 * @param oldestKept
+	 *            Number of the oldest build still there
+	 */
+	public void drop(final int deleted, final int oldestKept) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+
+		synchronized (ChangeIndex.class) {
+			final List<Integer> numbers = new ArrayList<Integer>();
+			final List<List<Record>> kept = new ArrayList<List<Record>>();
+			final boolean[] dropped = {false};
+
+			boolean complete = scan(new Visitor() {
+				@Override
+				public boolean wants(int number) {
+					if (number == deleted || number < oldestKept) {
+						dropped[0] = true;
+						return false;
+					}
+					return true;
+				}
+
+				@Override
+				public void visit(int number, List<Record> records) {
+					numbers.add(number);
+					kept.add(records);
+				}
+			});
+
+			// a broken index is rewritten with what could be read, so it does not stay broken forever
+			if (!dropped[0] && complete) {
+				return;
+			}
+
+			File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				for (int i = 0; i < numbers.size(); i++) {
+					write(out, numbers.get(i), kept.get(i));
+				}
+			} finally {
+				out.close();
+			}
+
+			if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+				temp.delete();
+				throw new IOException("Failed to replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * Goes through the records, decoding only the ones the visitor wants
+	 *
+	 * @return false if the index is broken and only a part of it was read
+	 */
+	private boolean scan(Visitor visitor) {
+		if (!file.isFile()) {
+			return true;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					int format;
+					try {
+						format = in.readByte();
+					} catch (EOFException e) {
+						return true;
+					}
+
+					if (format != FORMAT) {
+						LOGGER.log(Level.WARNING, "Unknown record format {0} in {1}, ignoring the rest", new Object[] {format, file});
+						return false;
+					}
+
+					int number = in.readInt();
+					int length = checkLength(in.readInt(), MAX_RECORD_LENGTH);
+					if (visitor.wants(number)) {
+						visitor.visit(number, readRecords(in));
+					} else {
+						skipFully(in, length);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			LOGGER.log(Level.WARNING, "Truncated change index {0}, using what was read", file);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read change index " + file + ", using what was read", e);
+		}
+		return false;
+	}
+
+	private static List<Record> readRecords(DataInputStream in) throws IOException {
+		int count = checkLength(in.readInt(), MAX_COUNT);
+		List<Record> records = new ArrayList<Record>(count);
+		for (int i = 0; i < count; i++) {
+			String author = readString(in);
+			String message = readString(in);
+			int pathCount = checkLength(in.readInt(), MAX_COUNT);
+			List<String> paths = new ArrayList<String>(pathCount);
+			for (int j = 0; j < pathCount; j++) {
+				paths.add(readString(in));
+			}
+			records.add(new Record(author, message, paths));
+		}
+		return records;
+	}
+
+	/**
+	 * Writes a record of the build, leaving out the changes and paths that would take it over the limits of the reader
+	 */
+	private static void write(DataOutputStream out, int number, List<Record> records) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		DataOutputStream encodedOut = new DataOutputStream(encoded);
+		int count = 0;
+		for (Record record: records) {
+			if (count == MAX_COUNT) {
+				LOGGER.log(Level.WARNING, "Build {0} has more than {1} changes, indexing only the first ones", new Object[] {number, MAX_COUNT});
+				break;
+			}
+
+			ByteArrayOutputStream change = new ByteArrayOutputStream();
+			DataOutputStream changeOut = new DataOutputStream(change);
+			writeString(changeOut, record.getAuthor());
+			writeString(changeOut, record.getMessage());
+			Collection<String> paths = record.getPaths() == null ? Collections.<String>emptyList() : record.getPaths();
+			int pathCount = Math.min(paths.size(), MAX_COUNT);
+			changeOut.writeInt(pathCount);
+			int written = 0;
+			for (String path: paths) {
+				if (written++ == pathCount) {
+					break;
+				}
+				writeString(changeOut, path);
+			}
+			changeOut.flush();
+
+			// 4 bytes for the count of changes
+			if (4 + encoded.size() + change.size() > MAX_RECORD_LENGTH) {
+				LOGGER.log(Level.WARNING, "Changes of build {0} are over {1} bytes, indexing only the first ones", new Object[] {number, MAX_RECORD_LENGTH});
+				break;
+			}
+			change.writeTo(encoded);
+			count++;
+		}
+
+		out.writeByte(FORMAT);
+		out.writeInt(number);
+		out.writeInt(4 + encoded.size());
+		out.writeInt(count);
+		encoded.writeTo(out);
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		int left = length;
+		while (left > 0) {
+			int skipped = in.skipBytes(left);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			left -= skipped;
+		}
+	}
+
+	private static int checkLength(int length, int max) throws IOException {
+		if (length < 0 || length > max) {
+			throw new IOException("Corrupt length " + length + ", at most " + max + " expected");
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the string in UTF-8, cut to {@link #MAX_STRING_LENGTH} bytes on a character boundary
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = (value == null ? "" : value).getBytes("UTF-8");
+		int length = bytes.length;
+		if (length > MAX_STRING_LENGTH) {
+			length = MAX_STRING_LENGTH;
+			// don't leave half of a multi-byte character
+			while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+				length--;
+			}
+		}
+		out.writeInt(length);
+		out.write(bytes, 0, length);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[checkLength(in.readInt(), MAX_STRING_LENGTH)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Decides which records to decode and receives them
+	 */
+	private interface Visitor {
+		boolean wants(int number);
+
+		void visit(int number, List<Record> records);
+	}
+
+	/**
+	 * Pojo to store an indexed change
+	 */
+	public static final class Record {
+		private final String author;
+		private final String message;
+		private final Collection<String> paths;
+
+		public Record(String author, String message, Collection<String> paths) {
+			this.author = author;
+			this.message = message;
+			this.paths = paths;
+		}
+
+		public String getAuthor() {
+			return author;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return paths affected by the change
+		 */
+		public Collection<String> getPaths() {
+			return paths;
+		}
+	}
+
+	/**
+	 * Appends changes of every finished build of jobs using {@link DebianPackageBuilder} to their index, and drops them with the build
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static final class Updater extends RunListener<AbstractBuild> {
+		public Updater() {
+			super(AbstractBuild.class);
+		}
+
+		@Override
+		public void onCompleted(AbstractBuild build, TaskListener listener) {
+			if (DebianPackageBuilder.getDPBuilders(build).isEmpty()) {
+				return;
+			}
+
+			try {
+				new ChangeIndex(build.getProject()).append(build);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to update change index of " + build.getProject().getFullName(), e);
+			}
+		}
+
+		@Override
+		public void onDeleted(AbstractBuild build) {
+			AbstractBuild firstBuild = (AbstractBuild) build.getProject().getFirstBuild();
+			int oldestKept = firstBuild == null ? build.getNumber() + 1 : Math.min(firstBuild.getNumber(), build.getNumber());
+
+			try {
+				new ChangeIndex(build.getProject()).drop(build.getNumber(), oldestKept);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to compact change index of " + build.getProject().getFullName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.Serializable;
+
+/**
+ * Pojo to store the topmost stanza of debian/changelog, as returned by {@link ChangelogParser}
+ */
+public final class ChangelogEntry implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String source;
+	private final String version;
+	private final String distribution;
+	private final String urgency;
+	private final String maintainer;
+	private final String date;
+	private final String changes;
+
+	public ChangelogEntry(String source, String version, String distribution, String urgency, String maintainer, String date, String changes) {
+		this.source = source;
+		this.version = version;
+		this.distribution = distribution;
+		this.urgency = urgency;
+		this.maintainer = maintainer;
+		this.date = date;
+		this.changes = changes;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return space-separated list of distributions, as written in changelog
+	 */
+	public String getDistribution() {
+		return distribution;
+	}
+
+	public String getUrgency() {
+		return urgency;
+	}
+
+	/**
+	 * @return maintainer in <b>Full Name &lt;email&gt;</b> form
+	 */
+	public String getMaintainer() {
+		return maintainer;
+	}
+
+	public String getDate() {
+		return date;
+	}
+
+	/**
+	 * @return the body of the stanza, possibly multi-line
+	 */
+	public String getChanges() {
+		return changes;
+	}
+}
@@ -0,0 +1,114 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.MessageFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the topmost stanza of debian/changelog on the remote side, in place of dpkg-parsechangelog.
+ * The file is read up to the trailer line of that stanza only.
+ */
+public class ChangelogParser implements FileCallable<ChangelogEntry> {
+	private static final long serialVersionUID = 1L;
+
+	// same as in dpkg's Dpkg::Changelog::Entry::Debian
+	private static final Pattern HEADER = Pattern.compile("^(\\w[-+0-9a-z.]*) \\(([^\\(\\) \\t]+)\\)((?:\\s+[-+0-9a-z.]+)+)\\;(.*)$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern TRAILER = Pattern.compile("^ \\-\\- (.*) <(.*)>(  ?)(.*)$");
+	private static final Pattern URGENCY = Pattern.compile("(?:^|,)\\s*urgency\\s*=\\s*([^,\\s]+)", Pattern.CASE_INSENSITIVE);
+
+	@Override
+	public ChangelogEntry invoke(File changelog, VirtualChannel channel) throws IOException, InterruptedException {
+		Reader reader = new InputStreamReader(new FileInputStream(changelog), "UTF-8");
+		try {
+			return parse(new BufferedReader(reader), changelog.getPath());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parses the first stanza from given reader and stops right after its trailer line.
+	 *
+	 * @param reader
+	 *            The changelog reader
+	 * @param name
+	 *            Name of the changelog to use in error messages
+	 * @return The parsed stanza
+	 * @throws IOException
+	 *             If reading fails or the changelog is malformed
+	 */
+	public static ChangelogEntry parse(BufferedReader reader, String name) throws IOException {
+		String line;
+		int lineNumber = 0;
+		Matcher header = null;
+
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().length() == 0) {
+				continue;
+			}
+
+			header = HEADER.matcher(line);
+			if (!header.matches()) {
+				throw new IOException(MessageFormat.format("{0}:{1}: expected changelog header, got <{2}>", name, String.valueOf(lineNumber), line));
+			}
+			break;
+		}
+
+		if (header == null) {
+			throw new IOException(MessageFormat.format("{0}: changelog is empty", name));
+		}
+
+		String source = header.group(1);
+		String version = header.group(2);
+		String distribution = header.group(3).trim();
+		String urgency = "";
+		Matcher urgencyMatcher = URGENCY.matcher(header.group(4));
+		if (urgencyMatcher.find()) {
+			urgency = urgencyMatcher.group(1);
+		}
+
+		StringBuilder changes = new StringBuilder();
+		int pendingBlankLines = 0;
+
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+
+			if (line.startsWith(" --")) {
+				Matcher trailer = TRAILER.matcher(line);
+				if (!trailer.matches()) {
+					throw new IOException(MessageFormat.format("{0}:{1}: badly formatted trailer line <{2}>", name, String.valueOf(lineNumber), line));
+				}
+				String maintainer = MessageFormat.format("{0} <{1}>", trailer.group(1), trailer.group(2));
+				return new ChangelogEntry(source, version, distribution, urgency, maintainer, trailer.group(4).trim(), changes.toString());
+			}
+
+			// leading and trailing blank lines are not a part of the changes
+			if (line.trim().length() == 0) {
+				if (changes.length() > 0) {
+					pendingBlankLines++;
+				}
+				continue;
+			}
+
+			for (; pendingBlankLines > 0; pendingBlankLines--) {
+				changes.append('\n');
+			}
+			if (changes.length() > 0) {
+				changes.append('\n');
+			}
+			changes.append(line);
+		}
+
+		throw new IOException(MessageFormat.format("{0}: unexpected end of file, no trailer line found for version {1}", name, version));
+	}
+}
@@ -0,0 +1,174 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import ru.yandex.jenkins.plugins.debuilder.DebianPackageBuilder.Change;
+
+import com.google.common.io.CharStreams;
+
+/**
+ * Prepends a new version stanza to debian/changelog in a single pass on the remote side,
+ * in place of <b>dch -b --newVersion</b> followed by a <b>dch --append</b> call per change.
+ * The stanza follows the layout of dch: the new version message comes first, then the changes in their order,
+ * under an <b>[ author ]</b> header whenever the author changes if there is more than one,
+ * and the trailer names the author of the last change, as the last <b>dch --append</b> rewrites it.
+ * Messages are trimmed and wrapped as Text::Wrap in dch does it, except that tabs are neither expanded nor put in place of spaces.
+ */
+public class ChangelogWriter implements FileCallable<Void> {
+	private static final long serialVersionUID = 1L;
+
+	// dch uses Text::Wrap with $columns = 80, which yields lines of 79 characters at most
+	private static final int WRAP_COLUMNS = 79;
+	private static final String FIRST_INDENT = "  * ";
+	private static final String NEXT_INDENT = "    ";
+	// dch creates new versions as UNRELEASED when --distributor is debian, current dch defaults to medium urgency
+	private static final String DISTRIBUTION = "UNRELEASED";
+	private static final String URGENCY = "medium";
+
+	private final String source;
+	private final String version;
+	private final String maintainerName;
+	private final String maintainerEmail;
+	private final String versionMessage;
+	private final List<Change> changes;
+
+	public ChangelogWriter(String source, String version, String maintainerName, String maintainerEmail, String versionMessage, List<Change> changes) {
+		this.source = source;
+		this.version = version;
+		this.maintainerName = maintainerName;
+		this.maintainerEmail = maintainerEmail;
+		this.versionMessage = versionMessage;
+		this.changes = new ArrayList<Change>(changes);
+	}
+
+	@Override
+	public Void invoke(File changelog, VirtualChannel channel) throws IOException, InterruptedException {
+		String oldContent = "";
+
+		if (changelog.exists()) {
+			InputStreamReader reader = new InputStreamReader(new FileInputStream(changelog), "UTF-8");
+			try {
+				oldContent = CharStreams.toString(reader);
+			} finally {
+				reader.close();
+			}
+		}
+
+		File temp = new File(changelog.getParentFile(), changelog.getName() + ".dpb-new");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			writer.write(renderStanza(new Date()));
+			writer.write(oldContent);
+		} finally {
+			writer.close();
+		}
+
+		if (!temp.renameTo(changelog)) {
+			// rename over existing file is not atomic everywhere, fall back to delete-and-rename
+			if (!changelog.delete() || !temp.renameTo(changelog)) {
+				throw new IOException("Failed to replace " + changelog.getAbsolutePath());
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Renders the new changelog stanza, including the trailing empty line.
+	 * If anyone but the maintainer authored a change, consecutive entries of each author are put under an <b>[ author ]</b> header,
+	 * so an author gets a new block every time the authorship changes, as in the multi-maintainer mode of dch.
+	 *
+	 * @param date
+	 *            The date to put into the trailer line
+	 * @return The stanza text
+	 */
+	String renderStanza(Date date) {
+		List<String> authors = new ArrayList<String>();
+		List<List<String>> blocks = new ArrayList<List<String>>();
+		authors.add(maintainerName);
+		blocks.add(new ArrayList<String>());
+		blocks.get(0).add(versionMessage);
+
+		for (Change change: changes) {
+			if (!change.getAuthor().equals(authors.get(authors.size() - 1))) {
+				authors.add(change.getAuthor());
+				blocks.add(new ArrayList<String>());
+			}
+			blocks.get(blocks.size() - 1).add(change.getMessage());
+		}
+
+		boolean multiMaintainer = blocks.size() > 1;
+
+		StringBuilder result = new StringBuilder();
+		result.append(source).append(" (").append(version).append(") ").append(DISTRIBUTION).append("; urgency=").append(URGENCY).append("\n\n");
+
+		for (int i = 0; i < blocks.size(); i++) {
+			if (multiMaintainer) {
+				if (i > 0) {
+					result.append("\n");
+				}
+				result.append("  [ ").append(authors.get(i)).append(" ]\n");
+			}
+			for (String message: blocks.get(i)) {
+				wrap(result, message);
+			}
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+		result.append("\n -- ").append(authors.get(authors.size() - 1)).append(" <").append(maintainerEmail).append(">  ").append(format.format(date)).append("\n\n");
+
+		return result.toString();
+	}
+
+	/**
+	 * Appends a single bullet point, wrapped like Text::Wrap does:
+	 * a line is broken at the last whitespace that fits and only that one whitespace character is dropped,
+	 * so line breaks, empty lines and runs of spaces of the message are kept.
+	 */
+	private static void wrap(StringBuilder result, String message) {
+		String text = message.trim();
+		if (text.length() == 0) {
+			result.append(FIRST_INDENT.trim()).append("\n");
+			return;
+		}
+
+		String indent = FIRST_INDENT;
+		int position = 0;
+
+		while (position < text.length()) {
+			int room = WRAP_COLUMNS - indent.length();
+			int lineEnd = text.indexOf('\n', position);
+			int end = Math.min(position + room, lineEnd < 0 ? text.length() : lineEnd);
+
+			while (end > position && end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+				end--;
+			}
+
+			if (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+				// words longer than the line itself are broken, just like Text::Wrap does by default
+				end = position + room;
+				result.append(indent).append(text, position, end).append("\n");
+				position = end;
+			} else {
+				result.append(indent).append(text, position, end).append("\n");
+				position = end + 1;
+			}
+
+			indent = NEXT_INDENT;
+		}
+	}
+}
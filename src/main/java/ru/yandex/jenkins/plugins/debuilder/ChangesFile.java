@@ -0,0 +1,156 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pojo with the source package and the list of files of an upload, as described by the <b>Source</b>, <b>Files</b> and <b>Checksums-Sha256</b> fields of a .changes file.
+ * A PGP signature around the fields is skipped.
+ */
+public class ChangesFile {
+	private final String name;
+	private final String source;
+	private final List<Entry> entries;
+
+	public ChangesFile(String name, String source, List<Entry> entries) {
+		this.name = name;
+		this.source = source;
+		this.entries = entries;
+	}
+
+	/**
+	 * @return name of the .changes file itself
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return name of the source package, or null if the .changes file has no <b>Source</b> field
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return files of the upload, not including the .changes file itself
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	public static ChangesFile parse(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			return parse(reader, file.getName());
+		} finally {
+			reader.close();
+		}
+	}
+
+	static ChangesFile parse(BufferedReader reader, String name) throws IOException {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		String source = null;
+		String field = null;
+		String line;
+
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("-----BEGIN PGP SIGNATURE")) {
+				break;
+			}
+
+			if (line.length() == 0 || line.startsWith("-----") || line.startsWith("Hash:")) {
+				field = null;
+				continue;
+			}
+
+			if (!Character.isWhitespace(line.charAt(0))) {
+				int colon = line.indexOf(':');
+				field = colon < 0 ? null : line.substring(0, colon);
+				if ("Source".equals(field)) {
+					// a binNMU has the version of the source in parentheses after its name
+					String[] values = line.substring(colon + 1).trim().split("\\s+");
+					source = values[0].length() == 0 ? null : values[0];
+				}
+				continue;
+			}
+
+			String[] values = line.trim().split("\\s+");
+			if ("Files".equals(field)) {
+				// md5 size section priority name
+				if (values.length != 5) {
+					throw new IOException(MessageFormat.format("Malformed Files line <{0}> in {1}", line, name));
+				}
+				getEntry(entries, values[4], values[1], name).md5 = values[0];
+			} else if ("Checksums-Sha256".equals(field)) {
+				// sha256 size name
+				if (values.length != 3) {
+					throw new IOException(MessageFormat.format("Malformed Checksums-Sha256 line <{0}> in {1}", line, name));
+				}
+				getEntry(entries, values[2], values[1], name).sha256 = values[0];
+			}
+		}
+
+		if (entries.isEmpty()) {
+			throw new IOException(MessageFormat.format("No files are listed in {0}", name));
+		}
+
+		return new ChangesFile(name, source, new ArrayList<Entry>(entries.values()));
+	}
+
+	private static Entry getEntry(Map<String, Entry> entries, String fileName, String size, String changesName) throws IOException {
+		Entry entry = entries.get(fileName);
+		if (entry == null) {
+			try {
+				entry = new Entry(fileName, Long.parseLong(size));
+			} catch (NumberFormatException e) {
+				throw new IOException(MessageFormat.format("Malformed size of {0} in {1}", fileName, changesName));
+			}
+			entries.put(fileName, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Pojo to store a file of the upload
+	 */
+	public static final class Entry {
+		private final String name;
+		private final long size;
+		private String md5;
+		private String sha256;
+
+		public Entry(String name, long size) {
+			this.name = name;
+			this.size = size;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getMd5() {
+			return md5;
+		}
+
+		/**
+		 * @return SHA-256 of the file, or null if the .changes file predates Checksums-Sha256
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+	}
+}
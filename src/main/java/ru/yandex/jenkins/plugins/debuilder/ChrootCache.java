@@ -0,0 +1,120 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import jedi.functional.FunctionalPrimitives;
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+/**
+ * Keeps cowbuilder base images with build dependencies preinstalled.
+ * An image is keyed by the distribution and the set of Build-Depends, so it is shared by
+ * all the builds and modules with the same dependencies, and is refreshed with
+ * <b>cowbuilder --update</b> once it gets older than the refresh period.
+ * An image is only trusted when its stamp matches, an image without one is recreated from scratch.
+ * Preparation of an image is serialized among the executors of a node.
+ */
+public class ChrootCache {
+	private static final String BASE_DIR = "/var/cache/pbuilder";
+
+	private final Runner runner;
+	private final FilePath nodeRoot;
+	private final String distribution;
+	private final long refreshPeriod;
+
+	/**
+	 * @param runner
+	 *            The runner of current build
+	 * @param nodeRoot
+	 *            Root of the node the build runs on
+	 * @param distribution
+	 *            Distribution of the chroot, like <b>wheezy</b>
+	 * @param refreshDays
+	 *            How often images are updated, in days
+	 */
+	public ChrootCache(Runner runner, FilePath nodeRoot, String distribution, int refreshDays) {
+		this.runner = runner;
+		this.nodeRoot = nodeRoot;
+		this.distribution = distribution;
+		this.refreshPeriod = refreshDays * 24L * 3600L * 1000L;
+	}
+
+	/**
+	 * Makes sure there is an up-to-date image with the build dependencies of given module
+	 *
+	 * @param remoteDebian
+	 *            Remote path to module's debian directory
+	 * @param control
+	 *            Parsed debian/control of the module
+	 * @return base path of the image to build in
+	 */
+	public String prepare(String remoteDebian, ControlFile control) throws InterruptedException, DebianizingException, IOException {
+		if (distribution == null || distribution.trim().length() == 0) {
+			throw new DebianizingException("Chroot distribution is not set");
+		}
+
+		Set<String> dependencies = new TreeSet<String>();
+		for (String dependency: control.getBuildDepends().split(",")) {
+			if (dependency.trim().length() > 0) {
+				dependencies.add(dependency.trim().replaceAll("\\s+", " "));
+			}
+		}
+
+		String dependencyList = FunctionalPrimitives.join(dependencies, ", ");
+		String key = distribution + "-" + DebUtils.sha256(dependencyList).substring(0, 16);
+		String basePath = BASE_DIR + "/dpb-" + key + ".cow";
+		NodeStamp stamp = new NodeStamp(nodeRoot, "chroot-" + key);
+
+		NodeLock lock = NodeLock.acquire(runner.getNodeName(), basePath);
+		try {
+			long start = System.currentTimeMillis();
+			FilePath image = new FilePath(runner.getChannel(), basePath);
+
+			if (image.exists() && !stamp.isFresh(dependencyList, 0)) {
+				// left behind by a failed or interrupted creation, its dependencies can't be trusted
+				runner.announce("Chroot {0} has no valid stamp, recreating it", basePath);
+				remove(basePath, stamp);
+			}
+
+			if (!image.exists()) {
+				runner.announce("Creating {0} chroot for Build-Depends <{1}> in {2}", distribution, dependencyList, basePath);
+				boolean created = false;
+				try {
+					runner.runProcess("sudo", "cowbuilder", "--create", "--distribution", distribution, "--basepath", basePath);
+					runner.runProcess("sudo", "cowbuilder", "--execute", "--save-after-exec", "--basepath", basePath, "--bindmounts", remoteDebian, "--", "/usr/lib/pbuilder/pbuilder-satisfydepends", "--control", remoteDebian + "/control");
+					stamp.record(dependencyList, distribution);
+					created = true;
+				} finally {
+					if (!created) {
+						remove(basePath, stamp);
+					}
+				}
+				runner.announce("Chroot created in {0} ms", System.currentTimeMillis() - start);
+				Metrics.get().cache("chroot", false);
+			} else if (!stamp.isFresh(dependencyList, refreshPeriod)) {
+				runner.announce("Refreshing chroot {0}", basePath);
+				runner.runProcess("sudo", "cowbuilder", "--update", "--basepath", basePath);
+				stamp.record(dependencyList, distribution);
+				runner.announce("Chroot refreshed in {0} ms", System.currentTimeMillis() - start);
+				Metrics.get().cache("chroot", false);
+			} else {
+				runner.announce("Reusing chroot {0}", basePath);
+				Metrics.get().cache("chroot", true);
+			}
+		} finally {
+			lock.release();
+		}
+
+		return basePath;
+	}
+
+	private void remove(String basePath, NodeStamp stamp) throws IOException, InterruptedException, DebianizingException {
+		stamp.invalidate();
+		if (!runner.runProcessForResult("sudo", "rm", "-rf", basePath)) {
+			runner.announce("Failed to remove chroot {0}", basePath);
+		}
+	}
+}
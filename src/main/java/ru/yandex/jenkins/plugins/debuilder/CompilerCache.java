@@ -0,0 +1,117 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath;
+
+import java.text.MessageFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+/**
+ * A per-job and per-module ccache directory kept in the node root, so that compilation results survive between builds.
+ * ccache itself takes care of the size limit, evicting least recently used entries.
+ */
+public class CompilerCache {
+	private static final Pattern HITS = Pattern.compile("^cache hit \\(\\w+\\)\\s+(\\d+)\\s*$", Pattern.MULTILINE);
+	private static final Pattern MISSES = Pattern.compile("^cache miss\\s+(\\d+)\\s*$", Pattern.MULTILINE);
+	// ccache 4.x prints "Hits: 12 / 20 (60.00 %)"
+	private static final Pattern HITS_OF_TOTAL = Pattern.compile("^\\s*Hits:\\s+(\\d+)\\s*/\\s*(\\d+)", Pattern.MULTILINE);
+	private static final Pattern SIZE = Pattern.compile("\\d+(\\.\\d+)?([kMGT]i?)?");
+
+	private final Runner runner;
+	private final String directory;
+	private final String moduleRoot;
+
+	/**
+	 * @param runner
+	 *            The runner of current build
+	 * @param nodeRoot
+	 *            Root of the node the build runs on
+	 * @param job
+	 *            Full name of the job, used to choose the cache directory
+	 * @param module
+	 *            Module name, used to choose the cache directory
+	 * @param moduleRoot
+	 *            Remote path to the module sources, used as ccache base dir
+	 */
+	public CompilerCache(Runner runner, FilePath nodeRoot, String job, String module, String moduleRoot) {
+		this.runner = runner;
+		this.directory = nodeRoot.child("debian-package-builder").child("ccache").child(toDirectoryName(job)).child(toDirectoryName(module)).getRemote();
+		this.moduleRoot = moduleRoot;
+	}
+
+	/**
+	 * @return readable name safe for the file system, with a hash of the original, so that names like <b>a/b</b> and <b>a_b</b> don't collide
+	 */
+	private static String toDirectoryName(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + DebUtils.sha256(name).substring(0, 8);
+	}
+
+	/**
+	 * Creates the cache directory if needed, applies the size limit and resets statistics
+	 *
+	 * @param maxSize
+	 *            Size limit in ccache format, like <b>5G</b>
+	 */
+	public void prepare(String maxSize) throws InterruptedException, DebianizingException {
+		if (maxSize == null || !SIZE.matcher(maxSize).matches()) {
+			throw new DebianizingException(MessageFormat.format("Bad compiler cache size <{0}>, expected something like 5G", maxSize));
+		}
+
+		runner.announce("Using compiler cache in {0}, limited to {1}", directory, maxSize);
+		runner.runCommand("mkdir -p ''{0}'' && export CCACHE_DIR=''{0}'' && ccache -M ''{1}'' && ccache -z", directory, maxSize);
+	}
+
+	/**
+	 * @return options for debuild to pass the cache into the build environment
+	 */
+	public String getDebuildOptions() {
+		return MessageFormat.format("--prepend-path=/usr/lib/ccache -eCCACHE_DIR=''{0}'' -eCCACHE_BASEDIR=''{1}'' -eDEB_BUILD_OPTIONS", directory, moduleRoot);
+	}
+
+	/**
+	 * Reads cache statistics accumulated since {@link #prepare(String)}
+	 *
+	 * @return hit ratio in percents, or -1 if nothing was compiled
+	 */
+	public int getHitRatio() throws DebianizingException {
+		String stats = runner.runCommandForOutput("export CCACHE_DIR=\"{0}\" && ccache -s", directory);
+
+		long hits = 0;
+		long total = 0;
+
+		Matcher ofTotal = HITS_OF_TOTAL.matcher(stats);
+		if (ofTotal.find()) {
+			hits = Long.parseLong(ofTotal.group(1));
+			total = Long.parseLong(ofTotal.group(2));
+		} else {
+			Matcher hitsMatcher = HITS.matcher(stats);
+			while (hitsMatcher.find()) {
+				hits += Long.parseLong(hitsMatcher.group(1));
+			}
+			Matcher missesMatcher = MISSES.matcher(stats);
+			total = hits;
+			while (missesMatcher.find()) {
+				total += Long.parseLong(missesMatcher.group(1));
+			}
+		}
+
+		if (total == 0) {
+			return -1;
+		}
+
+		return (int) (hits * 100 / total);
+	}
+
+	/**
+	 * @return remote path to the cache directory
+	 */
+	public String getDirectory() {
+		return directory;
+	}
+
+	static String describe(int hitRatio) {
+		return hitRatio < 0 ? "n/a" : hitRatio + "%";
+	}
+}
@@ -0,0 +1,141 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pojo to store the parts of debian/control the plugin cares about:
+ * the source name, the binary packages built from it and its build dependencies.
+ */
+public final class ControlFile implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String source;
+	private final List<String> packages;
+	private final String buildDepends;
+
+	public ControlFile(String source, List<String> packages, String buildDepends) {
+		this.source = source;
+		this.packages = new ArrayList<String>(packages);
+		this.buildDepends = buildDepends;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * @return names of binary packages declared in control
+	 */
+	public List<String> getPackages() {
+		return Collections.unmodifiableList(packages);
+	}
+
+	/**
+	 * @return Build-Depends and Build-Depends-Indep fields as written in control, joined with comma
+	 */
+	public String getBuildDepends() {
+		return buildDepends;
+	}
+
+	/**
+	 * @return names of all the packages mentioned in build dependencies, alternatives included,
+	 *         with version restrictions, architecture qualifiers and build profiles dropped
+	 */
+	public Set<String> getBuildDependencyNames() {
+		Set<String> result = new LinkedHashSet<String>();
+
+		for (String dependency: buildDepends.split("[,|]")) {
+			String name = dependency.replaceAll("\\([^)]*\\)|\\[[^\\]]*\\]|<[^>]*>", "").trim();
+			int colon = name.indexOf(':');
+			if (colon >= 0) {
+				name = name.substring(0, colon);
+			}
+			if (name.length() > 0) {
+				result.add(name);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads debian/control on the remote side
+	 */
+	public static final class Parser implements FileCallable<ControlFile> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public ControlFile invoke(File control, VirtualChannel channel) throws IOException, InterruptedException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(control), "UTF-8"));
+			try {
+				return parse(reader);
+			} finally {
+				reader.close();
+			}
+		}
+
+		public static ControlFile parse(BufferedReader reader) throws IOException {
+			String source = "";
+			List<String> packages = new ArrayList<String>();
+			StringBuilder buildDepends = new StringBuilder();
+
+			String field = null;
+			StringBuilder value = new StringBuilder();
+			String line;
+
+			while (true) {
+				line = reader.readLine();
+
+				boolean continuation = line != null && (line.startsWith(" ") || line.startsWith("\t"));
+				if (continuation) {
+					value.append(' ').append(line.trim());
+					continue;
+				}
+
+				if (field != null) {
+					String fieldValue = value.toString().trim();
+					if (field.equalsIgnoreCase("Source")) {
+						source = fieldValue;
+					} else if (field.equalsIgnoreCase("Package")) {
+						packages.add(fieldValue);
+					} else if (field.equalsIgnoreCase("Build-Depends") || field.equalsIgnoreCase("Build-Depends-Indep") || field.equalsIgnoreCase("Build-Depends-Arch")) {
+						if (buildDepends.length() > 0 && fieldValue.length() > 0) {
+							buildDepends.append(", ");
+						}
+						buildDepends.append(fieldValue);
+					}
+					field = null;
+				}
+
+				if (line == null) {
+					break;
+				}
+
+				if (line.startsWith("#")) {
+					continue;
+				}
+
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					field = line.substring(0, colon).trim();
+					value = new StringBuilder(line.substring(colon + 1));
+				}
+			}
+
+			return new ControlFile(source, packages, buildDepends.toString());
+		}
+	}
+}
@@ -1,22 +1,116 @@
 package ru.yandex.jenkins.plugins.debuilder;
 
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
+import hudson.model.StreamBuildListener;
+import hudson.remoting.RemoteOutputStream;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.Shell;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 
+import jenkins.model.Jenkins;
+
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 
 /**
  * A collection of tools to help the build and publish process
  * 
  */
 public class DebUtils {
+	/**
+	 * @param text
+	 *            The text to digest, as UTF-8
+	 * @return hex-encoded SHA-256 digest of the text
+	 */
+	public static String sha256(String text) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not supported by this JVM", e);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            The bytes to encode
+	 * @return lower-case hex representation of the bytes
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Prepends every line written through it with a fixed prefix.
+	 * Lines are written to the target atomically, so several such streams can share one log.
+	 * 
+	 */
+	public static class PrefixingOutputStream extends OutputStream {
+		private final OutputStream target;
+		private final byte[] prefix;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		/**
+		 * @param target
+		 *            The stream to write to, also used as a lock
+		 * @param prefix
+		 *            The prefix to prepend to every line
+		 * @param charset
+		 *            Charset of the target, like the build's one
+		 */
+		public PrefixingOutputStream(OutputStream target, String prefix, Charset charset) {
+			this.target = target;
+			this.prefix = prefix.getBytes(charset);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			line.write(b);
+			if (b == '\n') {
+				flushLine();
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (line.size() > 0) {
+				flushLine();
+			}
+			target.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		private void flushLine() throws IOException {
+			synchronized (target) {
+				target.write(prefix);
+				line.writeTo(target);
+			}
+			line.reset();
+		}
+	}
+
 	/**
 	 * Provides same tools to interact with the user console and the build
 	 * environment
@@ -27,6 +121,8 @@ public class DebUtils {
 		private final Launcher launcher;
 		private final BuildListener listener;
 		private final String prefix;
+		private PhaseTimingAction.Phase phase;
+		private long phaseStart;
 
 		/**
 		 * Create a new tool for the specific build process
@@ -95,7 +191,95 @@ public class DebUtils {
 		 */
 		public boolean runCommandForResult(String command) throws InterruptedException, DebianizingException {
 			announce("running command <{0}>", command);
-			return new Shell(command).perform(build, launcher, listener);
+
+			if (isExecutorEnabled()) {
+				return execute(command, new String[] {"/bin/sh", "-xe", "-c", command});
+			}
+
+			long start = System.currentTimeMillis();
+			CountingOutputStream output = new CountingOutputStream(listener.getLogger());
+			boolean result = new Shell(command).perform(build, launcher, new StreamBuildListener(output, build.getCharset()));
+			countCommand(output.getCount());
+			announce("command finished in {0} ms", String.valueOf(System.currentTimeMillis() - start));
+			return result;
+		}
+
+		/**
+		 * Same as {@link Runner#runProcessForResult(String...)}
+		 *
+		 * @throws DebianizingException
+		 *             If the process exits with non-zero code
+		 */
+		public void runProcess(String... args) throws InterruptedException, DebianizingException {
+			if (!runProcessForResult(args)) {
+				throw new DebianizingException(MessageFormat.format("Command <{0}> failed", join(args)));
+			}
+		}
+
+		/**
+		 * Run a process in the workspace without any shell, passing the arguments as they are
+		 *
+		 * @param args
+		 *            The command and its arguments
+		 * @return true if the process exited with zero code
+		 * @throws InterruptedException
+		 *             If the build is interrupted
+		 * @throws DebianizingException
+		 *             If the process can't be started
+		 */
+		public boolean runProcessForResult(String... args) throws InterruptedException, DebianizingException {
+			String command = join(args);
+			announce("running command <{0}>", command);
+
+			if (isExecutorEnabled()) {
+				return execute(command, args);
+			}
+
+			try {
+				long start = System.currentTimeMillis();
+				CountingOutputStream output = new CountingOutputStream(listener.getLogger());
+				int exitCode = launcher.launch().cmds(args).envs(build.getEnvironment(listener)).pwd(build.getWorkspace()).stdout(output).join();
+				countCommand(output.getCount());
+				announce("command finished in {0} ms", String.valueOf(System.currentTimeMillis() - start));
+				return exitCode == 0;
+			} catch (IOException e) {
+				throw new DebianizingException(MessageFormat.format("Command <{0}> failed", command), e);
+			}
+		}
+
+		private boolean isExecutorEnabled() {
+			DebianPackageBuilder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(DebianPackageBuilder.DescriptorImpl.class);
+			return descriptor != null && descriptor.isUsePersistentExecutor();
+		}
+
+		/**
+		 * Run the process with the node's {@link ProcessExecutor} and report how long the remoting part took
+		 */
+		private boolean execute(String command, String[] args) throws InterruptedException, DebianizingException {
+			try {
+				long start = System.currentTimeMillis();
+				ProcessExecutor executor = ProcessExecutor.Cache.get(getChannel());
+				CountingOutputStream output = new CountingOutputStream(listener.getLogger());
+				ProcessExecutor.Result result = executor.execute(build.getWorkspace().getRemote(), build.getEnvironment(listener), args, new RemoteOutputStream(output));
+				long total = System.currentTimeMillis() - start;
+				countCommand(output.getCount());
+
+				announce("command exited with code {0} in {1} ms, {2} ms of them spent outside the process", String.valueOf(result.getExitCode()), String.valueOf(total), String.valueOf(Math.max(0, total - result.getMillis())));
+				return result.getExitCode() == 0;
+			} catch (IOException e) {
+				throw new DebianizingException(MessageFormat.format("Command <{0}> failed", command), e);
+			}
+		}
+
+		private static String join(String[] args) {
+			StringBuilder result = new StringBuilder();
+			for (String arg: args) {
+				if (result.length() > 0) {
+					result.append(' ');
+				}
+				result.append(arg);
+			}
+			return result.toString();
 		}
 
 		public boolean runCommandForResult(String commandTemplate, Object ... arguments) throws InterruptedException, DebianizingException {
@@ -129,13 +313,93 @@ public class DebUtils {
 		public String runCommandForOutput(String command) throws DebianizingException {
 			try {
 				String actualCommand = MessageFormat.format("bash -c ''{0}''", command);
-				return CharStreams.toString(new InputStreamReader(launcher.launch().cmdAsSingleString(actualCommand).readStdout().start().getStdout()));
+				String output = CharStreams.toString(new InputStreamReader(launcher.launch().cmdAsSingleString(actualCommand).readStdout().start().getStdout()));
+				countCommand(output.length());
+				return output;
 			} catch (IOException e) {
 				e.printStackTrace(listener.getLogger());
 				throw new DebianizingException(MessageFormat.format("Command <{0}> failed", command), e);
 			}
 		}
 
+		/**
+		 * Run a process in the workspace without any shell, passing the arguments as they are, and return its standard output
+		 *
+		 * @param args
+		 *            The command and its arguments
+		 * @return The process output
+		 * @throws DebianizingException
+		 *             If the process can't be started or exits with non-zero code
+		 */
+		public String runProcessForOutput(String... args) throws InterruptedException, DebianizingException {
+			String command = join(args);
+			try {
+				Proc process = launcher.launch().cmds(args).envs(build.getEnvironment(listener)).pwd(build.getWorkspace()).readStdout().start();
+				String output = CharStreams.toString(new InputStreamReader(process.getStdout(), build.getCharset()));
+				countCommand(output.length());
+				if (process.join() != 0) {
+					throw new DebianizingException(MessageFormat.format("Command <{0}> failed", command));
+				}
+				return output;
+			} catch (IOException e) {
+				throw new DebianizingException(MessageFormat.format("Command <{0}> failed", command), e);
+			}
+		}
+
+		/**
+		 * Start timing a new phase, finishing the current one if any
+		 *
+		 * @param module
+		 *            The module the phase belongs to, or null if it is not module-specific
+		 * @param name
+		 *            Name of the phase
+		 */
+		public void startPhase(String module, String name) {
+			finishPhase();
+			phase = new PhaseTimingAction.Phase(module, name);
+			phaseStart = System.currentTimeMillis();
+		}
+
+		/**
+		 * Finish timing the current phase, if any, and record it into the build's {@link PhaseTimingAction}
+		 */
+		public void finishPhase() {
+			if (phase == null) {
+				return;
+			}
+
+			phase.setMillis(System.currentTimeMillis() - phaseStart);
+			PhaseTimingAction.of(build).add(phase);
+			Metrics.get().phase(phase.getName(), phase.getMillis());
+			announce("phase <{0}> took {1} ms, {2} commands, {3} bytes, {4} ms saved by caches", phase.getName(), String.valueOf(phase.getMillis()), String.valueOf(phase.getCommands()), String.valueOf(phase.getBytes()), String.valueOf(phase.getSavedMillis()));
+			phase = null;
+		}
+
+		/**
+		 * Account bytes transferred to the controller by other means than command output to the current phase
+		 */
+		public void countBytes(long count) {
+			if (phase != null) {
+				phase.addBytes(count);
+			}
+		}
+
+		/**
+		 * Account time saved in the current phase by reusing cached state
+		 */
+		public void countSaved(long millis) {
+			if (phase != null) {
+				phase.addSavedMillis(millis);
+			}
+		}
+
+		private void countCommand(long outputBytes) {
+			if (phase != null) {
+				phase.addCommand();
+				phase.addBytes(outputBytes);
+			}
+		}
+
 		/**
 		 * Print a new message line to user console with a prefix identification
 		 * 
@@ -167,6 +431,25 @@ public class DebUtils {
 			return launcher.getChannel();
 		}
 
+		/**
+		 * Get the root directory of the node the build runs on
+		 * 
+		 * @return The node root, or the workspace if the node is gone
+		 */
+		public FilePath getNodeRoot() {
+			if (build.getBuiltOn() == null || build.getBuiltOn().getRootPath() == null) {
+				return build.getWorkspace();
+			}
+			return build.getBuiltOn().getRootPath();
+		}
+
+		/**
+		 * @return name of the node the build runs on, empty for the controller
+		 */
+		public String getNodeName() {
+			return build.getBuiltOnStr();
+		}
+
 		/**
 		 * Get the {@link BuildListener}
 		 * 
@@ -10,14 +10,18 @@ import hudson.model.BuildBadgeAction;
 @ExportedBean
 public class DebianBadge implements BuildBadgeAction {
 	private String module = "";
+	private String version;
 	private String text = "built deb";
 	private String color = "#000000";
 	private String background = "#FFDA47";
 	private String border = "1px";
 	private String borderColor = "#0066FF";
+	// null when compiler cache was not used
+	private Integer compilerCacheHitRatio;
 
 	public DebianBadge(String latestVersion, String module) {
 		text = MessageFormat.format("deb {0}", latestVersion);
+		this.version = latestVersion;
 		this.module = module;
 	}
 
@@ -61,8 +65,31 @@ public class DebianBadge implements BuildBadgeAction {
 		return borderColor;
 	}
 
+	/**
+	 * @return version of the package built
+	 */
+	@Exported
+	public String getVersion() {
+		return version;
+	}
+
 	@Exported
 	public String getModule() {
 		return module;
 	}
+
+	/**
+	 * @return compiler cache hit ratio in percents, -1 if nothing was compiled, or null if compiler cache was not used
+	 */
+	@Exported
+	public Integer getCompilerCacheHitRatio() {
+		return compilerCacheHitRatio;
+	}
+
+	public void setCompilerCacheHitRatio(int compilerCacheHitRatio) {
+		this.compilerCacheHitRatio = compilerCacheHitRatio;
+		if (compilerCacheHitRatio >= 0) {
+			text = MessageFormat.format("{0}, ccache {1}%", text, compilerCacheHitRatio);
+		}
+	}
 }
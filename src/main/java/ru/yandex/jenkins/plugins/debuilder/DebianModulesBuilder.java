@@ -0,0 +1,310 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.PrefixingOutputStream;
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+/**
+ * Builds several debian modules at once.
+ * Order of the builds is derived from debian/control of the modules:
+ * a module is built only after all the modules producing its build dependencies are built.
+ * Modules that do not depend on each other are built concurrently.
+ */
+public class DebianModulesBuilder extends Builder {
+	private static final String PREFIX = "debian-modules-builder";
+
+	private final List<DebianPackageBuilder> modules;
+	private final int parallelism;
+	private final boolean bufferLogs;
+
+	@DataBoundConstructor
+	public DebianModulesBuilder(List<DebianPackageBuilder> modules, int parallelism, boolean bufferLogs) {
+		this.modules = modules == null ? new ArrayList<DebianPackageBuilder>() : new ArrayList<DebianPackageBuilder>(modules);
+		this.parallelism = parallelism;
+		this.bufferLogs = bufferLogs;
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+		PrintStream logger = listener.getLogger();
+		Runner runner = new DebUtils.Runner(build, launcher, listener, PREFIX);
+
+		if (modules.isEmpty()) {
+			runner.announce("No modules configured");
+			return true;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+
+		try {
+			modules.get(0).prepareNode(build, runner);
+			Map<DebianPackageBuilder, Map<DebianPackageBuilder, Set<String>>> dependencies = resolveDependencies(build, runner);
+			return buildAll(build, launcher, listener, runner, dependencies, executor);
+		} catch (InterruptedException e) {
+			logger.println(MessageFormat.format(DebianPackageBuilder.ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} catch (DebianizingException e) {
+			logger.println(MessageFormat.format(DebianPackageBuilder.ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} catch (IOException e) {
+			logger.println(MessageFormat.format(DebianPackageBuilder.ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} finally {
+			runner.finishPhase();
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads control files of all the modules and finds out which modules build-depend on packages produced by others
+	 *
+	 * @return for every module, the modules it depends on along with names of their packages it needs
+	 */
+	private Map<DebianPackageBuilder, Map<DebianPackageBuilder, Set<String>>> resolveDependencies(AbstractBuild<?, ?> build, Runner runner) throws IOException, InterruptedException {
+		Map<String, DebianPackageBuilder> producers = new HashMap<String, DebianPackageBuilder>();
+		Map<DebianPackageBuilder, ControlFile> controls = new LinkedHashMap<DebianPackageBuilder, ControlFile>();
+
+		for (DebianPackageBuilder module: modules) {
+			FilePath control = new FilePath(runner.getChannel(), module.getRemoteDebian(build.getWorkspace())).child("control");
+			ControlFile controlFile = control.act(new ControlFile.Parser());
+			controls.put(module, controlFile);
+
+			for (String binary: controlFile.getPackages()) {
+				producers.put(binary, module);
+			}
+		}
+
+		Map<DebianPackageBuilder, Map<DebianPackageBuilder, Set<String>>> result = new LinkedHashMap<DebianPackageBuilder, Map<DebianPackageBuilder, Set<String>>>();
+
+		for (Map.Entry<DebianPackageBuilder, ControlFile> entry: controls.entrySet()) {
+			Map<DebianPackageBuilder, Set<String>> moduleDependencies = new HashMap<DebianPackageBuilder, Set<String>>();
+
+			for (String dependency: entry.getValue().getBuildDependencyNames()) {
+				DebianPackageBuilder producer = producers.get(dependency);
+				if (producer != null && producer != entry.getKey()) {
+					if (!moduleDependencies.containsKey(producer)) {
+						moduleDependencies.put(producer, new HashSet<String>());
+					}
+					moduleDependencies.get(producer).add(dependency);
+					runner.announce("Module <{0}> build-depends on <{1}> from module <{2}>", entry.getKey().getPathToDebian(), dependency, producer.getPathToDebian());
+				}
+			}
+
+			result.put(entry.getKey(), moduleDependencies);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Runs the builds of the modules, starting every module as soon as all its dependencies are built
+	 *
+	 * @return true if all modules were built successfully
+	 */
+	private boolean buildAll(final AbstractBuild<?, ?> build, final Launcher launcher, BuildListener listener, Runner runner,
+			Map<DebianPackageBuilder, Map<DebianPackageBuilder, Set<String>>> dependencies, ExecutorService executor) throws InterruptedException {
+		CompletionService<DebianPackageBuilder> completion = new ExecutorCompletionService<DebianPackageBuilder>(executor);
+
+		Set<DebianPackageBuilder> pending = new HashSet<DebianPackageBuilder>(dependencies.keySet());
+		Set<DebianPackageBuilder> succeeded = new HashSet<DebianPackageBuilder>();
+		Map<Future<DebianPackageBuilder>, DebianPackageBuilder> running = new HashMap<Future<DebianPackageBuilder>, DebianPackageBuilder>();
+		boolean success = true;
+
+		try {
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				for (DebianPackageBuilder module: new ArrayList<DebianPackageBuilder>(pending)) {
+					if (succeeded.containsAll(dependencies.get(module).keySet())) {
+						pending.remove(module);
+						running.put(completion.submit(new ModuleBuild(module, dependencies.get(module), build, launcher, listener)), module);
+					}
+				}
+
+				if (running.isEmpty()) {
+					for (DebianPackageBuilder module: pending) {
+						runner.announce("Module <{0}> was not built because some of its dependencies failed or depend on it", module.getPathToDebian());
+					}
+					return false;
+				}
+
+				Future<DebianPackageBuilder> done = completion.take();
+				DebianPackageBuilder module = running.remove(done);
+
+				try {
+					done.get();
+					succeeded.add(module);
+					runner.announce("Module <{0}> is built", module.getPathToDebian());
+				} catch (ExecutionException e) {
+					success = false;
+					runner.announce("Module <{0}> failed: {1}", module.getPathToDebian(), e.getCause().getMessage());
+				}
+			}
+		} finally {
+			for (Future<DebianPackageBuilder> future: running.keySet()) {
+				future.cancel(true);
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * Builds a single module with its own prefixed (or buffered) log, installing packages of its upstream modules first
+	 */
+	private final class ModuleBuild implements Callable<DebianPackageBuilder> {
+		private final DebianPackageBuilder module;
+		private final Map<DebianPackageBuilder, Set<String>> upstream;
+		private final AbstractBuild<?, ?> build;
+		private final Launcher launcher;
+		private final BuildListener listener;
+
+		public ModuleBuild(DebianPackageBuilder module, Map<DebianPackageBuilder, Set<String>> upstream, AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+			this.module = module;
+			this.upstream = upstream;
+			this.build = build;
+			this.launcher = launcher;
+			this.listener = listener;
+		}
+
+		@Override
+		public DebianPackageBuilder call() throws Exception {
+			PrintStream logger = listener.getLogger();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			OutputStream target = bufferLogs ? buffer : logger;
+			OutputStream moduleOutput = new PrefixingOutputStream(target, MessageFormat.format("[{0}] ", module.getPathToDebian()), build.getCharset());
+			BuildListener moduleListener = new StreamBuildListener(moduleOutput, build.getCharset());
+
+			Runner moduleRunner = new DebUtils.Runner(build, launcher, moduleListener, DebianPackageBuilder.PREFIX);
+			try {
+				module.buildModule(build, launcher, moduleListener, moduleRunner, findUpstreamDebs(moduleRunner));
+			} catch (Exception e) {
+				moduleListener.getLogger().println(MessageFormat.format(DebianPackageBuilder.ABORT_MESSAGE, DebianPackageBuilder.PREFIX, e.getMessage()));
+				throw e;
+			} finally {
+				moduleRunner.finishPhase();
+				moduleListener.getLogger().flush();
+				if (bufferLogs) {
+					synchronized (logger) {
+						buffer.writeTo(logger);
+					}
+				}
+			}
+
+			return module;
+		}
+
+		/**
+		 * @return remote paths of the packages this module needs, as built in this build by the upstream modules
+		 */
+		private List<String> findUpstreamDebs(Runner moduleRunner) throws IOException, InterruptedException {
+			List<String> result = new ArrayList<String>();
+
+			for (Map.Entry<DebianPackageBuilder, Set<String>> entry: upstream.entrySet()) {
+				String remoteDebian = entry.getKey().getRemoteDebian(build.getWorkspace());
+				String version = getBuiltVersion(remoteDebian);
+				if (version == null) {
+					moduleRunner.announce("Module <{0}> was not built in this build, its packages should come from the repository", entry.getKey().getPathToDebian());
+					continue;
+				}
+
+				FilePath resultDir = new FilePath(moduleRunner.getChannel(), remoteDebian).getParent().getParent();
+				for (String binary: entry.getValue()) {
+					for (FilePath deb: resultDir.list(MessageFormat.format("{0}_{1}_*.deb", binary, ArtifactArchiver.stripEpoch(version)))) {
+						result.add(deb.getRemote());
+					}
+				}
+			}
+
+			return result;
+		}
+
+		private String getBuiltVersion(String remoteDebian) {
+			synchronized (build) {
+				for (DebianBadge badge: build.getActions(DebianBadge.class)) {
+					if (remoteDebian.equals(badge.getModule())) {
+						return badge.getVersion();
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+		return PhaseTimingProjectAction.forBuilder(project, this);
+	}
+
+	public List<DebianPackageBuilder> getModules() {
+		return Collections.unmodifiableList(modules);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public boolean isBufferLogs() {
+		return bufferLogs;
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+		@Override
+		public String getDisplayName() {
+			return "Build all debian modules";
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+			return true;
+		}
+
+		public FormValidation doCheckParallelism(@QueryParameter String value) {
+			try {
+				if (Integer.parseInt(value) > 0) {
+					return FormValidation.ok();
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			return FormValidation.error("Should be a positive number");
+		}
+	}
+}
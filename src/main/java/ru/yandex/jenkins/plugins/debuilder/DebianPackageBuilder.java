@@ -5,15 +5,19 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Environment;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Cause;
 import hudson.model.Cause.UserIdCause;
 import hudson.model.Descriptor;
 import hudson.model.Project;
 import hudson.model.Run;
+import hudson.plugins.git.GitSCM;
+import hudson.remoting.Callable;
 import hudson.scm.SubversionHack;
 import hudson.scm.SvnClientManager;
 import hudson.scm.ChangeLogSet;
@@ -26,18 +30,20 @@ import hudson.tasks.Builder;
 import hudson.util.DescribableList;
 import hudson.util.VariableResolver;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import jedi.functional.FunctionalPrimitives;
 import jedi.functional.Functor;
@@ -47,11 +53,8 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
-import org.tmatesoft.svn.core.ISVNLogEntryHandler;
 import org.tmatesoft.svn.core.SVNException;
-import org.tmatesoft.svn.core.SVNLogEntry;
 import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.wc.SVNRevision;
 
 import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
 
@@ -60,18 +63,33 @@ public class DebianPackageBuilder extends Builder {
 	public static final String DEBIAN_SOURCE_PACKAGE = "DEBIAN_SOURCE_PACKAGE";
 	public static final String DEBIAN_PACKAGE_VERSION = "DEBIAN_PACKAGE_VERSION";
 	public static final String ABORT_MESSAGE = "[{0}] Aborting: {1} ";
-	private static final String PREFIX = "debian-package-builder";
+	static final String PREFIX = "debian-package-builder";
+	// maintainer of the new changelog stanzas
+	static final String MAINTAINER_NAME = "Jenkins";
 
 	// location of debian catalog relative to the workspace root
 	private final String pathToDebian;
 	private final boolean generateChangelog;
 	private final boolean buildEvenWhenThereAreNoChanges;
+	private final boolean skipUnchangedModules;
+	// comma-separated Ant patterns of files not counted in module hash
+	private final String hashIgnores;
+	private final boolean useCompilerCache;
+	private final boolean buildInChroot;
+	// distribution of cowbuilder image, used when building in chroot
+	private final String chrootDistribution;
 
 	@DataBoundConstructor
-	public DebianPackageBuilder(String pathToDebian, Boolean generateChangelog, Boolean buildEvenWhenThereAreNoChanges) {
+	public DebianPackageBuilder(String pathToDebian, Boolean generateChangelog, Boolean buildEvenWhenThereAreNoChanges, Boolean skipUnchangedModules, String hashIgnores, Boolean useCompilerCache,
+			Boolean buildInChroot, String chrootDistribution) {
 		this.pathToDebian = pathToDebian;
 		this.generateChangelog = generateChangelog;
 		this.buildEvenWhenThereAreNoChanges = buildEvenWhenThereAreNoChanges;
+		this.skipUnchangedModules = skipUnchangedModules != null && skipUnchangedModules;
+		this.hashIgnores = hashIgnores;
+		this.useCompilerCache = useCompilerCache != null && useCompilerCache;
+		this.buildInChroot = buildInChroot != null && buildInChroot;
+		this.chrootDistribution = chrootDistribution;
 	}
 
 
@@ -79,69 +97,211 @@ public class DebianPackageBuilder extends Builder {
 	public boolean perform(@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener) {
 		PrintStream logger = listener.getLogger();
 
-		FilePath workspace = build.getWorkspace();
-		String remoteDebian = getRemoteDebian(workspace);
-
 		Runner runner = new DebUtils.Runner(build, launcher, listener, PREFIX);
 
 		try {
-			if (!getDescriptor().isDontInstallTools()) {
-				runner.runCommand("sudo apt-get update");
-				runner.runCommand("sudo apt-get install aptitude pbuilder");
-			}
+			prepareNode(build, runner);
+			buildModule(build, launcher, listener, runner, Collections.<String>emptyList());
+		} catch (InterruptedException e) {
+			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} catch (DebianizingException e) {
+			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} catch (IOException e) {
+			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
+			return false;
+		} finally {
+			runner.finishPhase();
+		}
 
-			importKeys(workspace, runner);
+		return true;
+	}
 
-			Map<String, String> changelog = parseChangelog(runner, remoteDebian);
+	/**
+	 * Installs the tools and imports the keys, i.e. does everything that is needed once per node rather than once per module
+	 *
+	 * @param build
+	 * @param runner
+	 * @throws InterruptedException
+	 * @throws DebianizingException
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	void prepareNode(AbstractBuild build, Runner runner) throws InterruptedException, DebianizingException, IOException {
+		if (!getDescriptor().isDontInstallTools()) {
+			runner.startPhase(null, "tools");
+			new ToolsCache(runner, runner.getNodeRoot(), getDescriptor().getToolsCacheTtl()).ensureInstalled("builder", true, "aptitude", "pbuilder");
+		}
+
+		runner.startPhase(null, "keys");
+		importKeys(build.getWorkspace(), runner);
+		runner.finishPhase();
+	}
+
+	/**
+	 * Builds the package of this module, assuming the node is already prepared with {@link #prepareNode(AbstractBuild, Runner)}
+	 *
+	 * @param build
+	 * @param launcher
+	 * @param listener
+	 * @param runner
+	 * @param upstreamDebs
+	 *            Remote paths of packages built earlier in this build which this module build-depends on, to be installed first
+	 * @throws InterruptedException
+	 * @throws DebianizingException
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	void buildModule(AbstractBuild build, Launcher launcher, BuildListener listener, Runner runner, Collection<String> upstreamDebs) throws InterruptedException, DebianizingException, IOException {
+		String remoteDebian = getRemoteDebian(build.getWorkspace());
+
+		if (skipUnchangedModules) {
+			runner.startPhase(pathToDebian, "hash");
+			String hash = new FilePath(runner.getChannel(), remoteDebian).getParent().act(new ModuleHasher(hashIgnores));
+			String previousHash = getLastSuccessfulHash(build, remoteDebian);
+			build.addAction(new ModuleHashAction(remoteDebian, hash));
+
+			if (isTriggeredAutomatically(build) && hash.equals(previousHash) && !buildEvenWhenThereAreNoChanges) {
+				runner.announce("Module content hash {0} is the same as in the last successful build - not building package.", hash);
+				Metrics.get().skipped("unchanged");
+				return;
+			}
+			runner.announce("Module content hash is {0}, was {1}", hash, previousHash);
+		}
 
-			String source = changelog.get("Source");
-			String latestVersion = changelog.get("Version");
-			runner.announce("Determined latest version to be {0}", latestVersion);
+		runner.startPhase(pathToDebian, "changelog parsing");
+		ChangelogEntry changelog = parseChangelog(runner, remoteDebian);
 
-			if (generateChangelog) {
-				Pair<VersionHelper, List<Change>> changes = generateChangelog(latestVersion, runner, build, launcher, listener, remoteDebian);
+		String source = changelog.getSource();
+		String latestVersion = changelog.getVersion();
+		runner.announce("Determined latest version to be {0}", latestVersion);
 
-				if (isTriggeredAutomatically(build) && changes.getRight().isEmpty() && !buildEvenWhenThereAreNoChanges) {
-					runner.announce("There are no creditable changes for this build - not building package.");
-					return true;
-				}
+		if (generateChangelog) {
+			runner.startPhase(pathToDebian, "change collection");
+			Pair<VersionHelper, List<Change>> changes = generateChangelog(latestVersion, runner, build, launcher, listener, remoteDebian);
 
-				latestVersion = changes.getLeft().toString();
-				writeChangelog(build, listener, remoteDebian, runner, changes);
+			if (isTriggeredAutomatically(build) && changes.getRight().isEmpty() && !buildEvenWhenThereAreNoChanges) {
+				runner.announce("There are no creditable changes for this build - not building package.");
+				Metrics.get().skipped("no_changes");
+				return;
 			}
 
+			String previousVersion = latestVersion;
+			latestVersion = changes.getLeft().toString();
+			warnIfNotNewer(runner, previousVersion, latestVersion);
+			runner.startPhase(pathToDebian, "changelog writing");
+			writeChangelog(build, listener, remoteDebian, source, runner, changes);
+		}
+
+		CompilerCache compilerCache = null;
+
+		if (buildInChroot) {
+			if (!upstreamDebs.isEmpty()) {
+				runner.announce("Packages of upstream modules are not installed into the chroot, they should come from the repository: {0}", FunctionalPrimitives.join(upstreamDebs, ", "));
+			}
+			buildInChroot(runner, remoteDebian);
+		} else {
 			if (!getDescriptor().isIgnoreDeps()) {
-				runner.runCommand("cd ''{0}'' && sudo /usr/lib/pbuilder/pbuilder-satisfydepends --control control", remoteDebian);
+				runner.startPhase(pathToDebian, "dependencies");
+				// modules built in parallel would otherwise fight for the dpkg lock
+				NodeLock lock = NodeLock.acquire(runner.getNodeName(), NodeLock.DPKG);
+				try {
+					installUpstreamDebs(runner, upstreamDebs);
+					runner.runCommand("cd ''{0}'' && sudo /usr/lib/pbuilder/pbuilder-satisfydepends --control control", remoteDebian);
+				} finally {
+					lock.release();
+				}
 			}
-			runner.runCommand("cd ''{0}'' && debuild --check-dirname-level 0 --no-tgz-check -k{1} -p''gpg --no-tty --passphrase {2}''", remoteDebian, getDescriptor().getAccountName(), getDescriptor().getPassphrase());
 
-			archiveArtifacts(build, runner, latestVersion);
+			String debuildOptions = "";
+			if (useCompilerCache) {
+				runner.startPhase(pathToDebian, "compiler cache");
+				if (!getDescriptor().isDontInstallTools()) {
+					new ToolsCache(runner, runner.getNodeRoot(), getDescriptor().getToolsCacheTtl()).ensureInstalled("ccache", false, "ccache");
+				}
+				compilerCache = new CompilerCache(runner, runner.getNodeRoot(), build.getProject().getFullName(), pathToDebian, new FilePath(runner.getChannel(), remoteDebian).getParent().getRemote());
+				compilerCache.prepare(getDescriptor().getCompilerCacheSize());
+				debuildOptions = compilerCache.getDebuildOptions();
+			}
+
+			runner.startPhase(pathToDebian, "debuild");
+			runner.runCommand("cd ''{0}'' && debuild --check-dirname-level 0 --no-tgz-check {3} -k{1} -p''gpg --no-tty --passphrase {2}''", remoteDebian, getDescriptor().getAccountName(), getDescriptor().getPassphrase(), debuildOptions);
+		}
 
-			build.addAction(new DebianBadge(latestVersion, remoteDebian));
-			EnvVars envVars = new EnvVars(DEBIAN_SOURCE_PACKAGE, source, DEBIAN_PACKAGE_VERSION, latestVersion);
+		runner.startPhase(pathToDebian, "archiving");
+		archiveArtifacts(build, runner, source, latestVersion);
+		runner.finishPhase();
+
+		DebianBadge badge = new DebianBadge(latestVersion, remoteDebian);
+		if (compilerCache != null) {
+			int hitRatio = compilerCache.getHitRatio();
+			runner.announce("Compiler cache hit ratio: {0}", CompilerCache.describe(hitRatio));
+			badge.setCompilerCacheHitRatio(hitRatio);
+			if (hitRatio >= 0) {
+				Metrics.get().compilerCacheHitRatio(hitRatio);
+			}
+		}
+		build.addAction(badge);
+		Metrics.get().built();
+		EnvVars envVars = new EnvVars(DEBIAN_SOURCE_PACKAGE, source, DEBIAN_PACKAGE_VERSION, latestVersion);
+		synchronized (build) {
 			build.getEnvironments().add(Environment.create(envVars));
-		} catch (InterruptedException e) {
-			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
-			return false;
-		} catch (DebianizingException e) {
-			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
-			return false;
-		} catch (IOException e) {
-			logger.println(MessageFormat.format(ABORT_MESSAGE, PREFIX, e.getMessage()));
-			return false;
 		}
+	}
 
-		return true;
+	/**
+	 * Installs packages of upstream modules, pulling their own dependencies with apt if needed
+	 */
+	private void installUpstreamDebs(Runner runner, Collection<String> upstreamDebs) throws InterruptedException, DebianizingException {
+		if (upstreamDebs.isEmpty()) {
+			return;
+		}
+
+		List<String> command = new ArrayList<String>(Arrays.asList("sudo", "dpkg", "-i"));
+		command.addAll(upstreamDebs);
+		if (!runner.runProcessForResult(command.toArray(new String[command.size()]))) {
+			runner.runProcess("sudo", "apt-get", "-f", "-y", "install");
+		}
+	}
+
+	/**
+	 * Builds the package inside a cached cowbuilder image with the module's build dependencies preinstalled,
+	 * then signs the result on the host
+	 *
+	 * @param runner
+	 * @param remoteDebian
+	 * @throws InterruptedException
+	 * @throws DebianizingException
+	 * @throws IOException
+	 */
+	private void buildInChroot(Runner runner, String remoteDebian) throws InterruptedException, DebianizingException, IOException {
+		runner.startPhase(pathToDebian, "dependencies");
+		if (!getDescriptor().isDontInstallTools()) {
+			new ToolsCache(runner, runner.getNodeRoot(), getDescriptor().getToolsCacheTtl()).ensureInstalled("cowbuilder", false, "cowbuilder", "devscripts");
+		}
+
+		FilePath debian = new FilePath(runner.getChannel(), remoteDebian);
+		ControlFile control = debian.child("control").act(new ControlFile.Parser());
+		String basePath = new ChrootCache(runner, runner.getNodeRoot(), chrootDistribution, getDescriptor().getChrootRefreshDays()).prepare(remoteDebian, control);
+
+		String moduleRoot = debian.getParent().getRemote();
+		String buildResult = debian.getParent().getParent().getRemote();
+		runner.startPhase(pathToDebian, "debuild");
+		runner.runCommand("cd ''{0}'' && pdebuild --pbuilder cowbuilder --buildresult ''{1}'' --debbuildopts ''-us -uc'' -- --basepath ''{2}''", moduleRoot, buildResult, basePath);
+		runner.runCommand("cd ''{0}'' && debsign -k{1} -p''gpg --no-tty --passphrase {2}''", moduleRoot, getDescriptor().getAccountName(), getDescriptor().getPassphrase());
 	}
 
 	@SuppressWarnings("rawtypes")
-	private void archiveArtifacts(AbstractBuild build, Runner runner, String latestVersion) throws IOException, InterruptedException {
+	private void archiveArtifacts(AbstractBuild build, Runner runner, String source, String latestVersion) throws IOException, InterruptedException {
 		FilePath path = build.getWorkspace().child(pathToDebian).child("..");
-		String mask = "*" + latestVersion + "*.deb";
-		for (FilePath file:path.list(mask)) {
-			runner.announce("Archiving file <{0}> as a build artifact", file.getName());
+		ArtifactManifest manifest = new ArtifactArchiver(runner).archive(path, source, latestVersion, build.getArtifactsDir());
+		runner.announce("Archived {0} files of {1} {2}", manifest.getEntries().size(), source, latestVersion);
+
+		if (getDescriptor().isUseArtifactStore()) {
+			long saved = new ArtifactStore().store(build.getArtifactsDir(), manifest, runner.getListener());
+			runner.announce("Moved artifacts to the shared store, {0} bytes were already stored", saved);
 		}
-		path.copyRecursiveTo(mask, new FilePath(build.getArtifactsDir()));
 	}
 
 	/**
@@ -182,21 +342,34 @@ public class DebianPackageBuilder extends Builder {
 
 		SCM scm = build.getProject().getScm();
 
-		helper.setMinorVersion(helper.getMinorVersion() + 1);
+		helper = helper.withMinorVersion(helper.getMinorVersion() + 1);
 		String oldRevision = helper.getRevision();
 
 		String ourMessage = DebianPackagePublisher.getUsedCommitMessage(build);
 
 		List<Change> changes;
 
-		if (! (scm instanceof SubversionSCM)) {
-			runner.announce("SCM in use is not Subversion (but <{0}> instead), defaulting to changes since last build", scm.getClass().getName());
-			changes = getChangesSinceLastBuild(runner, build, ourMessage);
+		if (scm instanceof GitSCM) {
+			String oldCommit = helper.getGitRevision();
+			String moduleRoot = new FilePath(runner.getChannel(), remoteDebian).getParent().getRemote();
+			GitChangesCollector.Result result = build.getWorkspace().act(new GitChangesCollector(((GitSCM) scm).getRelativeTargetDir(), moduleRoot, oldCommit, getDescriptor().getMaxChangelogEntries(), ourMessage));
+			helper = helper.withGitRevision(result.getHead());
+
+			if (result.getChanges() == null) {
+				runner.announce("Last commit <{0}> is not known, using changes since last successful build to populate debian/changelog", oldCommit);
+				changes = getChangesSinceLastBuild(runner, build, ourMessage, getGitModuleFilter(build, (GitSCM) scm, moduleRoot));
+			} else {
+				runner.announce("Calculated changes since commit {0}.", oldCommit);
+				changes = result.getChanges();
+			}
+		} else if (! (scm instanceof SubversionSCM)) {
+			runner.announce("SCM in use is neither Subversion nor Git (but <{0}> instead), defaulting to changes since last build", scm.getClass().getName());
+			changes = getChangesSinceLastBuild(runner, build, ourMessage, null);
 		} else {
-			helper.setRevision(getSVNRevision(build, (SubversionSCM) scm, runner, remoteDebian, listener));
+			helper = helper.withRevision(getSVNRevision(build, (SubversionSCM) scm, runner, remoteDebian, listener));
 			if ("".equals(oldRevision)) {
 				runner.announce("No last revision known, using changes since last successful build to populate debian/changelog");
-				changes = getChangesSinceLastBuild(runner, build, ourMessage);
+				changes = getChangesSinceLastBuild(runner, build, ourMessage, getSVNModuleFilter(build, (SubversionSCM) scm, runner, remoteDebian));
 			} else {
 				runner.announce("Calculating changes since revision {0}.", oldRevision);
 				changes = getChangesFromSubversion(runner, (SubversionSCM) scm, build, remoteDebian, oldRevision, helper.getRevision(), ourMessage);
@@ -212,6 +385,7 @@ public class DebianPackageBuilder extends Builder {
 	 * @param build
 	 * @param listener
 	 * @param remoteDebian
+	 * @param source
 	 * @param runner
 	 * @param changes
 	 * @throws IOException
@@ -219,19 +393,53 @@ public class DebianPackageBuilder extends Builder {
 	 * @throws DebianizingException
 	 */
 	@SuppressWarnings("rawtypes")
-	private void writeChangelog(AbstractBuild build, BuildListener listener, String remoteDebian, Runner runner, Pair<VersionHelper, List<Change>> changes) throws IOException,
+	private void writeChangelog(AbstractBuild build, BuildListener listener, String remoteDebian, String source, Runner runner, Pair<VersionHelper, List<Change>> changes) throws IOException,
 			InterruptedException, DebianizingException {
 
 		String versionMessage = getCausedMessage(build);
 
 		String newVersionMessage = Util.replaceMacro(versionMessage, new VariableResolver.ByMap<String>(build.getEnvironment(listener)));
-		startVersion(runner, remoteDebian, changes.getLeft(), newVersionMessage);
 
-		for (Change change: changes.getRight()) {
-			addChange(runner, remoteDebian, change);
+		if (getDescriptor().isUseDch()) {
+			startVersion(runner, remoteDebian, changes.getLeft(), newVersionMessage);
+
+			for (Change change: changes.getRight()) {
+				addChange(runner, remoteDebian, change);
+			}
+		} else {
+			runner.announce("Starting version <{0}> with message <{1}>", changes.getLeft(), clearMessage(newVersionMessage));
+
+			List<Change> cleared = new ArrayList<Change>();
+			for (Change change: changes.getRight()) {
+				runner.announce("Got changeset entry: {0} by {1}", clearMessage(change.getMessage()), change.getAuthor());
+				cleared.add(new Change(change.getAuthor(), clearMessage(change.getMessage())));
+			}
+
+			ChangelogWriter writer = new ChangelogWriter(source, changes.getLeft().toString(), MAINTAINER_NAME, getDescriptor().getAccountName(), clearMessage(newVersionMessage), cleared);
+			new FilePath(runner.getChannel(), remoteDebian).child("changelog").act(writer);
 		}
 	}
 
+	/**
+	 * @return content hash of the module recorded by the last successful build, or null if there is none
+	 */
+	@SuppressWarnings("rawtypes")
+	private String getLastSuccessfulHash(AbstractBuild build, String remoteDebian) {
+		Run<?, ?> lastSuccessfulBuild = (Run<?, ?>) build.getProject().getLastSuccessfulBuild();
+
+		if (lastSuccessfulBuild == null) {
+			return null;
+		}
+
+		for (ModuleHashAction action: lastSuccessfulBuild.getActions(ModuleHashAction.class)) {
+			if (action.getModule().equals(remoteDebian)) {
+				return action.getHash();
+			}
+		}
+
+		return null;
+	}
+
 	@SuppressWarnings("rawtypes")
 	private boolean isTriggeredAutomatically (AbstractBuild build) {
 		for (Object cause: build.getCauses()) {
@@ -308,43 +516,146 @@ public class DebianPackageBuilder extends Builder {
 		throw new DebianizingException("Can't find module location for remoteDebian " + remoteDebian);
 	}
 
+	/**
+	 * Fetches the log page by page, so at most a page of entries is in flight at once.
+	 * With the controller-side cache enabled, only revisions not fetched before are asked from the server.
+	 * Otherwise, once the changes limit is reached, the rest of the range is only counted, without fetching messages.
+	 */
 	private List<Change> getChangesFromSubversion(final Runner runner, SubversionSCM scm, @SuppressWarnings("rawtypes") AbstractBuild build, final String remoteDebian, String latestRevision, String currentRevision, final String ourMessage) throws DebianizingException {
-		final List<Change> result = new ArrayList<DebianPackageBuilder.Change>();
+		final ChangeCollector collector = new ChangeCollector(getDescriptor().getMaxChangelogEntries(), ourMessage);
+
+		SvnLogFetcher.EntryHandler handler = new SvnLogFetcher.EntryHandler() {
+			@Override
+			public boolean wantsDetails() {
+				return !collector.isFull();
+			}
+
+			@Override
+			public void handle(long revision, String author, String message) {
+				if (collector.isFull()) {
+					collector.skip();
+				} else {
+					collector.add(author, message);
+				}
+			}
+		};
 
 		SvnClientManager manager = SubversionSCM.createClientManager(build.getProject());
 		try {
 			ModuleLocation location = findOurLocation(build, scm, runner, remoteDebian);
 
 			try {
-				SVNURL svnurl = location.getSVNURL();
-				manager.getLogClient().doLog(svnurl, null, SVNRevision.UNDEFINED, SVNRevision.create(Long.parseLong(latestRevision) + 1), SVNRevision.parse(currentRevision), false, true, 0, new ISVNLogEntryHandler() {
-
-					@Override
-					public void handleLogEntry(SVNLogEntry logEntry) throws SVNException {
-						if (!logEntry.getMessage().equals(ourMessage)) {
-							result.add(new Change(logEntry.getAuthor(), logEntry.getMessage()));
-						}
-					}
-				});
+				// log of the module directory itself, so that commits to other modules in the same location are not listed
+				SVNURL moduleUrl = location.getSVNURL();
+				String modulePath = getModulePathInLocation(build, location, remoteDebian);
+				if (modulePath.length() > 0) {
+					moduleUrl = moduleUrl.appendPath(modulePath, false);
+				}
+
+				SvnLogFetcher fetcher = new SvnLogFetcher(manager, moduleUrl, getDescriptor().getSvnLogPageSize());
+				long startRevision = Long.parseLong(latestRevision) + 1;
+				long endRevision = Long.parseLong(currentRevision);
+
+				if (getDescriptor().getSvnLogCacheSize() > 0) {
+					long fetched = new SvnLogCache(getDescriptor().getSvnLogCacheSize()).replay(fetcher, startRevision, endRevision, handler);
+					runner.announce("Got log for {0} revisions from cache, {1} from server", Math.max(0, endRevision - startRevision + 1 - fetched), fetched);
+					Metrics.get().cache("svn_log", fetched == 0);
+				} else {
+					fetcher.fetch(startRevision, endRevision, handler);
+				}
 			} catch (SVNException e) {
 				throw new DebianizingException("SVNException: " + e.getMessage(), e);
+			} catch (IOException e) {
+				throw new DebianizingException("IOException: " + e.getMessage(), e);
 			}
 		} finally {
 			manager.dispose();
 		}
 
-		return result;
+		return collector.getChanges();
+	}
+
+	/**
+	 * @return path of the module directory relative to the checkout directory of the location, with '/' separators
+	 */
+	@SuppressWarnings("rawtypes")
+	private String getModulePathInLocation(AbstractBuild build, ModuleLocation location, String remoteDebian) {
+		String locationRoot = build.getWorkspace().child(location.getLocalDir()).getRemote();
+		String moduleRoot = new FilePath(build.getWorkspace().getChannel(), remoteDebian).getParent().getRemote();
+
+		return getRelativePath(locationRoot, moduleRoot);
+	}
+
+	private static String getRelativePath(String root, String path) {
+		String relative = path.length() > root.length() && path.startsWith(root) ? path.substring(root.length()) : "";
+		return relative.replace('\\', '/').replaceAll("^/+|/+$", "");
+	}
+
+	/**
+	 * @return filter matching SVN changed paths (relative to repository root) under the module directory
+	 */
+	@SuppressWarnings("rawtypes")
+	private PathTrie getSVNModuleFilter(AbstractBuild build, SubversionSCM scm, Runner runner, String remoteDebian) throws DebianizingException {
+		ModuleLocation location = findOurLocation(build, scm, runner, remoteDebian);
+		PathTrie filter = new PathTrie();
+
+		SvnClientManager manager = SubversionSCM.createClientManager(build.getProject());
+		try {
+			SVNURL url = location.getSVNURL();
+			SVNURL root = manager.getCore().createRepository(url, true).getRepositoryRoot(true);
+			String locationPath = getRelativePath(root.getPath(), url.getPath());
+			filter.add(locationPath + "/" + getModulePathInLocation(build, location, remoteDebian));
+		} catch (SVNException e) {
+			throw new DebianizingException("SVNException: " + e.getMessage(), e);
+		} finally {
+			manager.dispose();
+		}
+
+		return filter;
+	}
+
+	/**
+	 * @return filter matching git changed paths (relative to the clone root) under the module directory
+	 */
+	@SuppressWarnings("rawtypes")
+	private PathTrie getGitModuleFilter(AbstractBuild build, GitSCM scm, String moduleRoot) {
+		String cloneRoot = scm.getRelativeTargetDir() == null ? build.getWorkspace().getRemote() : build.getWorkspace().child(scm.getRelativeTargetDir()).getRemote();
+		String modulePath = getRelativePath(cloneRoot, moduleRoot);
+
+		if (modulePath.length() == 0) {
+			return null;
+		}
+
+		PathTrie filter = new PathTrie();
+		filter.add(modulePath);
+		return filter;
 	}
 
+	/**
+	 * @param moduleFilter
+	 *            Filter of changed paths that belong to the module, or null to take all changes
+	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private List<Change> getChangesSinceLastBuild(Runner runner, AbstractBuild build, String ourMessage) throws InterruptedException, DebianizingException {
-		List<Change> result = new ArrayList<DebianPackageBuilder.Change>();
+	private List<Change> getChangesSinceLastBuild(Runner runner, AbstractBuild build, String ourMessage, PathTrie moduleFilter) throws InterruptedException, DebianizingException {
+		ChangeCollector collector = new ChangeCollector(getDescriptor().getMaxChangelogEntries(), ourMessage);
 		Run lastSuccessfulBuild = build.getProject().getLastSuccessfulBuild();
 
 		int lastSuccessNumber = lastSuccessfulBuild == null ? 0 : lastSuccessfulBuild.number;
 
+		// changes of finished builds are read from the index, so those builds need not be loaded
+		Map<Integer, List<ChangeIndex.Record>> indexed = new ChangeIndex(build.getProject()).read(lastSuccessNumber, build.number - 1);
+
 		for (int num = lastSuccessNumber + 1; num <= build.number; num ++) {
-			AbstractBuild run = (AbstractBuild) build.getProject().getBuildByNumber(num);
+			if (indexed.containsKey(num)) {
+				for (ChangeIndex.Record record: indexed.get(num)) {
+					if (moduleFilter == null || moduleFilter.matchesAny(record.getPaths())) {
+						collector.add(record.getAuthor(), record.getMessage());
+					}
+				}
+				continue;
+			}
+
+			AbstractBuild run = num == build.number ? build : (AbstractBuild) build.getProject().getBuildByNumber(num);
 
 			if (run == null) {
 				continue;
@@ -353,13 +664,13 @@ public class DebianPackageBuilder extends Builder {
 			ChangeLogSet<? extends Entry> changeSet = run.getChangeSet();
 
 			for (Entry entry : changeSet) {
-				if (!entry.getMsg().equals(ourMessage)) {
-					result.add(new Change(entry.getAuthor().getFullName(), entry.getMsg()));
+				if (moduleFilter == null || moduleFilter.matchesAny(entry.getAffectedPaths())) {
+					collector.add(entry.getAuthor().getFullName(), entry.getMsg());
 				}
 			}
 		}
 
-		return result;
+		return collector.getChanges();
 	}
 
 	/**
@@ -367,7 +678,8 @@ public class DebianPackageBuilder extends Builder {
 	 *
 	 * @author pupssman
 	 */
-	private static final class Change {
+	static final class Change implements Serializable {
+		private static final long serialVersionUID = 1L;
 		private final String author;
 		private final String message;
 
@@ -394,42 +706,106 @@ public class DebianPackageBuilder extends Builder {
 		runner.runCommand("export DEBEMAIL={0} && export DEBFULLNAME={1} && cd ''{2}'' && dch --check-dirname-level 0 --distributor debian --append ''{3}''", getDescriptor().getAccountName(), change.getAuthor(), remoteDebian, clearMessage(change.getMessage()));
 	}
 
+	/**
+	 * dpkg and the repository would not accept a package that is not newer than the previous one, so better say it early
+	 */
+	private void warnIfNotNewer(Runner runner, String previousVersion, String newVersion) {
+		try {
+			if (DebianVersion.STRING_ORDER.compare(newVersion, previousVersion) <= 0) {
+				runner.announce("Warning: new version {0} is not newer than {1} by dpkg rules", newVersion, previousVersion);
+			}
+		} catch (IllegalArgumentException e) {
+			runner.announce("Warning: failed to compare versions: {0}", e.getMessage());
+		}
+	}
+
 	private void startVersion(Runner runner, String remoteDebian, VersionHelper helper, String message) throws InterruptedException, DebianizingException {
 		runner.announce("Starting version <{0}> with message <{1}>", helper, clearMessage(message));
-		runner.runCommand("export DEBEMAIL={0} && export DEBFULLNAME={1} && cd ''{2}'' && dch --check-dirname-level 0 -b --distributor debian --newVersion {3} ''{4}''", getDescriptor().getAccountName(), "Jenkins", remoteDebian, helper, clearMessage(message));
+		runner.runCommand("export DEBEMAIL={0} && export DEBFULLNAME={1} && cd ''{2}'' && dch --check-dirname-level 0 -b --distributor debian --newVersion {3} ''{4}''", getDescriptor().getAccountName(), MAINTAINER_NAME, remoteDebian, helper, clearMessage(message));
 	}
 
 	/**
-	 * FIXME Doesn't work with multi-line entries
+	 * Parses the topmost entry of debian/changelog right on the remote side
 	 */
-	private Map<String, String> parseChangelog(Runner runner, String remoteDebian) throws DebianizingException {
-		String changelogOutput = runner.runCommandForOutput("cd \"{0}\" && dpkg-parsechangelog -lchangelog", remoteDebian);
-		Map<String, String> changelog = new HashMap<String, String>();
-		Pattern changelogFormat = Pattern.compile("(\\w+):\\s*(.*)");
-
-		for(String row: changelogOutput.split("\n")) {
-			Matcher matcher = changelogFormat.matcher(row);
-			if (matcher.matches()) {
-				 changelog.put(matcher.group(1), matcher.group(2));
-			}
+	private ChangelogEntry parseChangelog(Runner runner, String remoteDebian) throws DebianizingException, InterruptedException {
+		try {
+			return new FilePath(runner.getChannel(), remoteDebian).child("changelog").act(new ChangelogParser());
+		} catch (IOException e) {
+			throw new DebianizingException("Failed to parse changelog: " + e.getMessage(), e);
 		}
-
-		return changelog;
 	}
 
+	/**
+	 * Imports the configured GPG keys, unless the node stamp says they were imported into the very keyring that is there now.
+	 * The keyring is recognized by its files, so a warm build starts no gpg process at all.
+	 */
 	private void importKeys(FilePath workspace, Runner runner)
 			throws InterruptedException, DebianizingException, IOException {
-		if (!runner.runCommandForResult("gpg --list-key {0}", getDescriptor().getAccountName())) {
-			FilePath publicKey = workspace.createTextTempFile("public", "key", getDescriptor().getPublicKey());
-			runner.runCommand("gpg --import ''{0}''", publicKey.getRemote());
-			publicKey.delete();
+		NodeStamp stamp = new NodeStamp(runner.getNodeRoot(), "gpg-keys");
+		String account = getDescriptor().getAccountName();
+		String keysDigest = getDescriptor().getKeysDigest();
+
+		boolean fresh = stamp.isFresh(keysDigest + " " + runner.getChannel().call(new KeyringState()), 0);
+		Metrics.get().cache("gpg_keys", fresh);
+		if (fresh) {
+			runner.announce("GPG keys for {0} are already imported on this node", account);
+			return;
 		}
 
-		if (!runner.runCommandForResult("gpg --list-secret-key {0}", getDescriptor().getAccountName())) {
-			FilePath privateKey = workspace.createTextTempFile("private", "key", getDescriptor().getPrivateKey());
-			runner.runCommand("gpg --import ''{0}''", privateKey.getRemote());
-			privateKey.delete();
+		// an import failing halfway should not leave a stamp behind
+		stamp.invalidate();
+
+		// the keyring may have other keys of the account, like the ones the configured keys replaced, so the configured ones are always imported
+		Set<String> imported = new LinkedHashSet<String>();
+		imported.addAll(importKey(workspace, runner, "public", getDescriptor().getPublicKey()));
+		imported.addAll(importKey(workspace, runner, "private", getDescriptor().getPrivateKey()));
+
+		Set<String> secret = new LinkedHashSet<String>();
+		for (String line: runner.runProcessForOutput("gpg", "--with-colons", "--with-fingerprint", "--list-secret-keys", account).split("\n")) {
+			String[] fields = line.split(":");
+			if (fields[0].equals("fpr") && fields.length > 9) {
+				secret.add(fields[9].toUpperCase());
+			}
+		}
+
+		Set<String> configured = new LinkedHashSet<String>(secret);
+		configured.retainAll(imported);
+		if (configured.isEmpty()) {
+			throw new DebianizingException(MessageFormat.format("None of the imported keys {0} is a secret key of {1}", imported, account));
 		}
+		secret.removeAll(imported);
+		if (!secret.isEmpty()) {
+			runner.announce("Warning: the keyring has other secret keys of {0} besides the configured ones: {1}", account, secret);
+		}
+
+		stamp.record(keysDigest + " " + runner.getChannel().call(new KeyringState()), FunctionalPrimitives.join(configured, " "));
+	}
+
+	/**
+	 * @return fingerprints of the keys gpg reports imported, even if they were already in the keyring
+	 */
+	private Set<String> importKey(FilePath workspace, Runner runner, String name, String key) throws IOException, InterruptedException, DebianizingException {
+		FilePath keyFile = workspace.createTextTempFile(name, "key", key);
+		String status;
+		try {
+			status = runner.runProcessForOutput("gpg", "--status-fd", "1", "--import", keyFile.getRemote());
+		} finally {
+			keyFile.delete();
+		}
+
+		Set<String> fingerprints = new LinkedHashSet<String>();
+		for (String line: status.split("\n")) {
+			// [GNUPG:] IMPORT_OK <reasons> <fingerprint>
+			String[] fields = line.trim().split(" ");
+			if (fields.length > 3 && fields[0].equals("[GNUPG:]") && fields[1].equals("IMPORT_OK")) {
+				fingerprints.add(fields[3].toUpperCase());
+			}
+		}
+
+		if (fingerprints.isEmpty()) {
+			throw new DebianizingException(MessageFormat.format("No keys were imported from the configured {0} key", name));
+		}
+		return fingerprints;
 	}
 
 	public boolean isGenerateChangelog() {
@@ -440,11 +816,50 @@ public class DebianPackageBuilder extends Builder {
 		return pathToDebian;
 	}
 
+	@Override
+	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+		return PhaseTimingProjectAction.forBuilder(project, this);
+	}
+
 	@Override
 	public DescriptorImpl getDescriptor() {
 		return (DescriptorImpl)super.getDescriptor();
 	}
 
+	/**
+	 * Describes the files of the GPG keyring of the node user by their names, sizes and modification times, without starting gpg.
+	 * Only the files holding the keys count: gpg updates the trust database and the random seed by itself.
+	 */
+	private static final class KeyringState implements Callable<String, IOException> {
+		private static final long serialVersionUID = 1L;
+		private static final String[] KEY_FILES = {"pubring.kbx", "pubring.gpg", "secring.gpg", "private-keys-v1.d"};
+
+		@Override
+		public String call() throws IOException {
+			String gnupgHome = System.getenv("GNUPGHOME");
+			File home = gnupgHome == null ? new File(System.getProperty("user.home"), ".gnupg") : new File(gnupgHome);
+
+			StringBuilder state = new StringBuilder();
+			for (String name: KEY_FILES) {
+				describe(state, new File(home, name));
+				File[] children = new File(home, name).listFiles();
+				if (children != null) {
+					Arrays.sort(children);
+					for (File child: children) {
+						describe(state, child);
+					}
+				}
+			}
+			return DebUtils.sha256(state.toString());
+		}
+
+		private static void describe(StringBuilder state, File file) {
+			if (file.exists()) {
+				state.append(file.getName()).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+			}
+		}
+	}
+
 	@Extension
 	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
@@ -462,6 +877,49 @@ public class DebianPackageBuilder extends Builder {
 		 * Defaults to false for backward compatibility
 		 */
 		private boolean dontInstallTools = false;
+		/**
+		 * Write changelog by calling dch for each entry instead of the native writer.
+		 * Defaults to true until the native writer is known to match dch
+		 */
+		private boolean useDch = true;
+		/**
+		 * How long the tools installed on a node are trusted, in hours.
+		 * Non-positive value means tools are installed on every build
+		 */
+		private int toolsCacheTtl = 24;
+		/**
+		 * Size limit of each module's compiler cache, in ccache format
+		 */
+		private String compilerCacheSize = "5G";
+		/**
+		 * How often cowbuilder images are updated, in days
+		 */
+		private int chrootRefreshDays = 7;
+		/**
+		 * Number of SVN log entries fetched per request
+		 */
+		private int svnLogPageSize = 500;
+		/**
+		 * Maximum number of changes put into a single changelog entry, the rest are summarised.
+		 * Non-positive value means no limit
+		 */
+		private int maxChangelogEntries = 1000;
+		/**
+		 * Size limit of the controller-side SVN log cache, in megabytes. Non-positive value disables the cache
+		 */
+		private int svnLogCacheSize = 64;
+		/**
+		 * Run commands through a persistent per-node {@link ProcessExecutor} instead of a shell step per command.
+		 * Defaults to false
+		 */
+		private boolean usePersistentExecutor = false;
+		/**
+		 * Keep archived package files in a content-addressed store on the controller, linked from builds.
+		 * Defaults to false
+		 */
+		private boolean useArtifactStore = false;
+
+		private transient String keysDigest;
 
 		public DescriptorImpl() {
 			load();
@@ -489,6 +947,15 @@ public class DebianPackageBuilder extends Builder {
 			setPassphrase(json.getString("passphrase"));
 			setIgnoreDeps(json.getBoolean("ignoreDeps"));
 			setDontInstallTools(json.getBoolean("dontInstallTools"));
+			setUseDch(json.getBoolean("useDch"));
+			setToolsCacheTtl(json.optInt("toolsCacheTtl", 24));
+			setCompilerCacheSize(json.optString("compilerCacheSize", "5G"));
+			setChrootRefreshDays(json.optInt("chrootRefreshDays", 7));
+			setSvnLogPageSize(json.optInt("svnLogPageSize", 500));
+			setMaxChangelogEntries(json.optInt("maxChangelogEntries", 1000));
+			setSvnLogCacheSize(json.optInt("svnLogCacheSize", 64));
+			setUsePersistentExecutor(json.optBoolean("usePersistentExecutor"));
+			setUseArtifactStore(json.optBoolean("useArtifactStore"));
 
 			save();
 			return true; // indicate that everything is good so far
@@ -500,10 +967,12 @@ public class DebianPackageBuilder extends Builder {
 
 		public void setPrivateKey(String privateKey) {
 			this.privateKey = privateKey;
+			this.keysDigest = null;
 		}
 
 		public void setPublicKey(String publicKey) {
 			this.publicKey = publicKey;
+			this.keysDigest = null;
 		}
 
 		public String getAccountName() {
@@ -512,6 +981,17 @@ public class DebianPackageBuilder extends Builder {
 
 		public void setAccountName(String accountName) {
 			this.accountName = accountName;
+			this.keysDigest = null;
+		}
+
+		/**
+		 * @return digest of the configured account and keys, changes whenever any of them changes
+		 */
+		public String getKeysDigest() {
+			if (keysDigest == null) {
+				keysDigest = DebUtils.sha256(accountName + "\n" + publicKey + "\n" + privateKey);
+			}
+			return keysDigest;
 		}
 
 		public String getPassphrase() {
@@ -538,6 +1018,78 @@ public class DebianPackageBuilder extends Builder {
 			this.dontInstallTools = dontInstallTools;
 		}
 
+		public boolean isUseDch() {
+			return useDch;
+		}
+
+		public void setUseDch(boolean useDch) {
+			this.useDch = useDch;
+		}
+
+		public int getToolsCacheTtl() {
+			return toolsCacheTtl;
+		}
+
+		public void setToolsCacheTtl(int toolsCacheTtl) {
+			this.toolsCacheTtl = toolsCacheTtl;
+		}
+
+		public String getCompilerCacheSize() {
+			return compilerCacheSize == null || compilerCacheSize.trim().length() == 0 ? "5G" : compilerCacheSize;
+		}
+
+		public void setCompilerCacheSize(String compilerCacheSize) {
+			this.compilerCacheSize = compilerCacheSize;
+		}
+
+		public int getChrootRefreshDays() {
+			return chrootRefreshDays;
+		}
+
+		public void setChrootRefreshDays(int chrootRefreshDays) {
+			this.chrootRefreshDays = chrootRefreshDays;
+		}
+
+		public int getSvnLogPageSize() {
+			return svnLogPageSize > 0 ? svnLogPageSize : 500;
+		}
+
+		public void setSvnLogPageSize(int svnLogPageSize) {
+			this.svnLogPageSize = svnLogPageSize;
+		}
+
+		public int getMaxChangelogEntries() {
+			return maxChangelogEntries;
+		}
+
+		public void setMaxChangelogEntries(int maxChangelogEntries) {
+			this.maxChangelogEntries = maxChangelogEntries;
+		}
+
+		public int getSvnLogCacheSize() {
+			return svnLogCacheSize;
+		}
+
+		public void setSvnLogCacheSize(int svnLogCacheSize) {
+			this.svnLogCacheSize = svnLogCacheSize;
+		}
+
+		public boolean isUsePersistentExecutor() {
+			return usePersistentExecutor;
+		}
+
+		public void setUsePersistentExecutor(boolean usePersistentExecutor) {
+			this.usePersistentExecutor = usePersistentExecutor;
+		}
+
+		public boolean isUseArtifactStore() {
+			return useArtifactStore;
+		}
+
+		public void setUseArtifactStore(boolean useArtifactStore) {
+			this.useArtifactStore = useArtifactStore;
+		}
+
 	}
 
 
@@ -568,6 +1120,8 @@ public class DebianPackageBuilder extends Builder {
 			for (Builder builder: builders) {
 				if (builder instanceof DebianPackageBuilder) {
 					result.add((DebianPackageBuilder) builder);
+				} else if (builder instanceof DebianModulesBuilder) {
+					result.addAll(((DebianModulesBuilder) builder).getModules());
 				}
 			}
 		}
@@ -579,4 +1133,24 @@ public class DebianPackageBuilder extends Builder {
 		return buildEvenWhenThereAreNoChanges;
 	}
 
+	public boolean isSkipUnchangedModules() {
+		return skipUnchangedModules;
+	}
+
+	public String getHashIgnores() {
+		return hashIgnores;
+	}
+
+	public boolean isUseCompilerCache() {
+		return useCompilerCache;
+	}
+
+	public boolean isBuildInChroot() {
+		return buildInChroot;
+	}
+
+	public String getChrootDistribution() {
+		return chrootDistribution;
+	}
+
 }
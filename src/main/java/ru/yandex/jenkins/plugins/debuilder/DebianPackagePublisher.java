@@ -23,15 +23,18 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import jedi.functional.FunctionalPrimitives;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
@@ -51,6 +54,7 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 	private String repoId;
 	private String commitMessage;
 	private final boolean commitChanges;
+	private String versionFiles;
 
 	/**
 	 * Constructor with the required fields that jenkins require
@@ -61,12 +65,15 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 	 *            The commit message requested by SCMs
 	 * @param commitChanges
 	 *            Condition required to commit the changes
+	 * @param versionFiles
+	 *            Comma-separated paths of files besides debian/changelog to commit, relative to each module
 	 */
 	@DataBoundConstructor
-	public DebianPackagePublisher(String repoId, String commitMessage, boolean commitChanges) {
+	public DebianPackagePublisher(String repoId, String commitMessage, boolean commitChanges, String versionFiles) {
 		this.commitChanges = commitChanges;
 		this.commitMessage = commitMessage;
 		this.repoId = repoId;
+		this.versionFiles = versionFiles;
 
 		if (getRepo() == null) {
 			throw new IllegalArgumentException(MessageFormat.format("Repo {0} is not found in global configuration", repoId));
@@ -119,11 +126,7 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 	 *             If the file operations where interrupted
 	 */
 	private String getRemoteKeyPath(AbstractBuild<?, ?> build) throws IOException, InterruptedException {
-		String keysDir = "debian-package-builder-keys";
-
-		String relativeKeyPath = new File(keysDir, getRepo().getKeypath()).getPath();
-		File absoluteKeyPath = new File (Jenkins.getInstance().getRootDir(), relativeKeyPath);
-		FilePath localKey = new FilePath(absoluteKeyPath);
+		FilePath localKey = new FilePath(getLocalKeyFile());
 
 		FilePath remoteKey = build.getWorkspace().createTextTempFile("private", "key", localKey.readToString());
 		remoteKey.chmod(0600);
@@ -162,7 +165,7 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		duploadConf.touch(System.currentTimeMillis()/1000);
 		duploadConf.write(conf, "UTF-8");
 
-		runner.runCommand("sudo mv ''{0}'' ''{1}''", duploadConf.getRemote(), filePath);
+		runner.runProcess("sudo", "mv", duploadConf.getRemote(), filePath);
 	}
 
 	@Override
@@ -180,38 +183,21 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		}
 
 		Runner runner = new DebUtils.Runner(build, launcher, listener, PREFIX);
-		String duploadConfPath = "/etc/dupload.conf";
 
 		try {
-			if (!getDescriptor().isDontInstallTools()) {
-				runner.runCommand("sudo apt-get install dupload devscripts");
+			boolean wereBuilds;
+			if (getDescriptor().isUseNativeUploader()) {
+				wereBuilds = releaseNatively(build, runner);
+			} else {
+				wereBuilds = releaseWithDupload(build, runner);
 			}
-			generateDuploadConf(duploadConfPath, build, runner);
 
-			List<String> builtModules = new ArrayList<String>();
-
-			for (BuildBadgeAction action: build.getBadgeActions()) {
-				if (action instanceof DebianBadge) {
-					builtModules.add(((DebianBadge) action).getModule());
-				}
-			}
-
-			boolean wereBuilds = false;
-
-			for (String module: DebianPackageBuilder.getRemoteModules(build)) {
-				if (! builtModules.contains(new FilePath(build.getWorkspace().getChannel(), module).child("debian").getRemote())) {
-					runner.announce("Module in {0} was not built - not releasing", module);
-					continue;
-				}
-
-				if (!runner.runCommandForResult("cd ''{0}'' && debrelease", module)) {
-					throw new DebianizingException("Debrelease failed");
-				}
-
-				wereBuilds = true;
+			if (wereBuilds) {
+				Metrics.get().released(repoId);
 			}
 
 			if (wereBuilds && commitChanges) {
+				runner.startPhase(null, "commit");
 				String expandedCommitMessage = getExpandedCommitMessage(build, listener);
 				commitChanges(build, runner, expandedCommitMessage);
 			}
@@ -221,11 +207,115 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		} catch (DebianizingException e) {
 			logger.println(MessageFormat.format(DebianPackageBuilder.ABORT_MESSAGE, PREFIX, e.getMessage()));
 			build.setResult(Result.UNSTABLE);
+		} finally {
+			runner.finishPhase();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Installs dupload and runs debrelease in every built module
+	 *
+	 * @return true if any module was built
+	 */
+	private boolean releaseWithDupload(AbstractBuild<?, ?> build, Runner runner) throws IOException, InterruptedException, DebianizingException {
+		String duploadConfPath = "/etc/dupload.conf";
+
+		if (!getDescriptor().isDontInstallTools()) {
+			runner.startPhase(null, "publisher tools");
+			int ttl = ((DebianPackageBuilder.DescriptorImpl) Jenkins.getInstance().getDescriptor(DebianPackageBuilder.class)).getToolsCacheTtl();
+			new ToolsCache(runner, runner.getNodeRoot(), ttl).ensureInstalled("publisher", false, "dupload", "devscripts");
+		}
+		runner.startPhase(null, "dupload configuration");
+		generateDuploadConf(duploadConfPath, build, runner);
+
+		List<String> builtModules = new ArrayList<String>();
+
+		for (BuildBadgeAction action: build.getBadgeActions()) {
+			if (action instanceof DebianBadge) {
+				builtModules.add(((DebianBadge) action).getModule());
+			}
+		}
+
+		boolean wereBuilds = false;
+
+		for (String module: DebianPackageBuilder.getRemoteModules(build)) {
+			if (! builtModules.contains(new FilePath(build.getWorkspace().getChannel(), module).child("debian").getRemote())) {
+				runner.announce("Module in {0} was not built - not releasing", module);
+				continue;
+			}
+
+			runner.startPhase(module, "debrelease");
+			boolean released = runner.runCommandForResult("cd ''{0}'' && debrelease", module);
+			Metrics.get().uploaded(repoId, released);
+			if (!released) {
+				throw new DebianizingException("Debrelease failed");
+			}
+
+			wereBuilds = true;
+		}
+
+		return wereBuilds;
+	}
+
+	/**
+	 * Uploads the archived packages of the build with {@link SftpUploader}
+	 *
+	 * @return true if any module was built
+	 */
+	private boolean releaseNatively(AbstractBuild<?, ?> build, Runner runner) throws IOException, InterruptedException, DebianizingException {
+		runner.startPhase(null, "upload");
+
+		File artifactsDir = build.getArtifactsDir();
+		File[] manifestFiles = artifactsDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(ArtifactManifest.SUFFIX);
+			}
+		});
+
+		List<ChangesFile> changes = new ArrayList<ChangesFile>();
+		Map<String, ArtifactManifest.Entry> checksums = new HashMap<String, ArtifactManifest.Entry>();
+		if (manifestFiles != null) {
+			for (File manifestFile: manifestFiles) {
+				for (ArtifactManifest.Entry entry: ArtifactManifest.read(manifestFile).getEntries()) {
+					checksums.put(entry.getName(), entry);
+					if (entry.getName().endsWith(".changes")) {
+						changes.add(ChangesFile.parse(new File(artifactsDir, entry.getName())));
+					}
+				}
+			}
+		}
+
+		if (changes.isEmpty()) {
+			runner.announce("No archived .changes files - nothing to release");
+			return false;
+		}
+
+		SftpUploader uploader = new SftpUploader(getRepo(), getLocalKeyFile(), getDescriptor().getUploadParallelism(), runner, new UploadIndex(getRepo()));
+		boolean success = false;
+		try {
+			uploader.connect();
+			long bytes = uploader.upload(artifactsDir, changes, checksums);
+			runner.countBytes(bytes);
+			runner.announce("Uploaded {0} packages, {1} bytes, to {2}; {3} bytes were already there", changes.size(), String.valueOf(bytes), getRepo().getName(), String.valueOf(uploader.getSkipped()));
+			Metrics.get().uploadSkipped(repoId, uploader.getSkipped());
+			success = true;
+		} finally {
+			uploader.close();
+			for (int i = 0; i < changes.size(); i++) {
+				Metrics.get().uploaded(repoId, success);
+			}
 		}
 
 		return true;
 	}
 
+	private File getLocalKeyFile() {
+		return new File(new File(Jenkins.getInstance().getRootDir(), "debian-package-builder-keys"), getRepo().getKeypath());
+	}
+
 	private String getExpandedCommitMessage(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
 		EnvVars env = build.getEnvironment(listener);
 		return env.expand(getCommitMessage());
@@ -246,16 +336,25 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 	private void commitToGitAndPush(final AbstractBuild<?, ?> build, final Runner runner, GitSCM scm, String commitMessage) throws DebianizingException {
 		try {
 			GitCommitHelper helper = new GitCommitHelper(build, scm, runner, commitMessage, DebianPackageBuilder.getRemoteModules(build));
+			GitCommitHelper.Result result = build.getWorkspace().act(helper);
 
-			if (build.getWorkspace().act(helper)) {
-				runner.announce("Successfully commited to git");
-			} else {
-				throw new DebianizingException("Failed to commit to git");
-			}
+			Metrics.get().cache("git_exe", helper.isLookupReused());
+			runner.countSaved(helper.getLookupSavedMillis());
+			Metrics.get().gitPushed(true, result.getAttempts() - 1, result.getBackoffMillis());
+			runner.announce("Successfully commited and pushed to git in {0} attempts, {1} ms, {2} ms of them in backoff", result.getAttempts(), String.valueOf(result.getMillis()), String.valueOf(result.getBackoffMillis()));
 		} catch (IOException e) {
-			e.printStackTrace();
+			// remote calls wrap the exception, so look for it down the causes
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof GitCommitHelper.PushFailedException) {
+					GitCommitHelper.PushFailedException failure = (GitCommitHelper.PushFailedException) cause;
+					Metrics.get().gitPushed(false, failure.getRejections(), failure.getBackoffMillis());
+					throw new DebianizingException("Failed to push to git: " + failure.getMessage(), e);
+				}
+			}
+			Metrics.get().gitPushed(false, 0, 0);
+			throw new DebianizingException("Failed to commit to git: " + e.getMessage(), e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			throw new DebianizingException("Interrupted: " + e.getMessage(), e);
 		}
 	}
 
@@ -264,15 +363,14 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		ISVNAuthenticationProvider authenticationProvider = descriptor.createAuthenticationProvider(build.getProject());
 
 		try {
-			for (String module: DebianPackageBuilder.getRemoteModules(build)) {
-				SVNCommitHelper helper = new SVNCommitHelper(authenticationProvider, module, commitMessage);
-				runner.announce("Commited revision <{0}> of <{2}> with message <{1}>", runner.getChannel().call(helper), commitMessage, module);
-			}
+			Collection<String> modules = DebianPackageBuilder.getRemoteModules(build);
+			SVNCommitHelper helper = new SVNCommitHelper(authenticationProvider, modules, getVersionFileList(), commitMessage);
+			SVNCommitHelper.Result result = runner.getChannel().call(helper);
+			runner.announce("Collected {0} changed files out of {1} in {2} ms", result.getItems(), result.getTargets(), String.valueOf(result.getCollectMillis()));
+			runner.announce("Commited revision <{0}> of <{2}> with message <{1}>", result.getRevisions(), commitMessage, FunctionalPrimitives.join(modules, ", "));
 		} catch (IOException e) {
-			e.printStackTrace();
 			throw new DebianizingException("IOException: " + e.getMessage(), e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
 			throw new DebianizingException("Interrupted: " + e.getMessage(), e);
 		}
 	}
@@ -297,6 +395,15 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		 * Defaults to false for backward compatibility
 		 */
 		private boolean dontInstallTools = false;
+		/**
+		 * Upload archived packages over SFTP from the controller instead of running debrelease on the node.
+		 * Defaults to false
+		 */
+		private boolean useNativeUploader = false;
+		/**
+		 * Maximum number of files uploaded at once by the native uploader
+		 */
+		private int uploadParallelism = 4;
 
 		public DescriptorImpl() {
 			super();
@@ -329,6 +436,8 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
 			repos = req.bindJSONToList(DebianPackageRepo.class, formData.get("repositories"));
 			setDontInstallTools(formData.getBoolean("dontInstallTools"));
+			setUseNativeUploader(formData.optBoolean("useNativeUploader"));
+			setUploadParallelism(formData.optInt("uploadParallelism", 4));
 			save();
 
 			return super.configure(req,formData);
@@ -352,6 +461,22 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 		public void setDontInstallTools(boolean dontInstallTools) {
 			this.dontInstallTools = dontInstallTools;
 		}
+
+		public boolean isUseNativeUploader() {
+			return useNativeUploader;
+		}
+
+		public void setUseNativeUploader(boolean useNativeUploader) {
+			this.useNativeUploader = useNativeUploader;
+		}
+
+		public int getUploadParallelism() {
+			return uploadParallelism > 0 ? uploadParallelism : 4;
+		}
+
+		public void setUploadParallelism(int uploadParallelism) {
+			this.uploadParallelism = uploadParallelism;
+		}
 	}
 
 	public boolean isCommitChanges() {
@@ -365,4 +490,20 @@ public class DebianPackagePublisher extends Recorder implements Serializable {
 	public String getRepoId() {
 		return repoId;
 	}
+
+	public String getVersionFiles() {
+		return versionFiles;
+	}
+
+	private List<String> getVersionFileList() {
+		List<String> result = new ArrayList<String>();
+		if (versionFiles != null) {
+			for (String file: versionFiles.split(",")) {
+				if (file.trim().length() > 0) {
+					result.add(file.trim());
+				}
+			}
+		}
+		return result;
+	}
 }
@@ -11,9 +11,11 @@ public final class DebianPackageRepo {
 	private String login;
 	private String options;
 	private String keypath;
+	private String hostKey;
+	private String pool;
 
 	@DataBoundConstructor
-	public DebianPackageRepo(String name, String method, String fqdn, String incoming, String login, String options, String keypath) {
+	public DebianPackageRepo(String name, String method, String fqdn, String incoming, String login, String options, String keypath, String hostKey, String pool) {
 		this.name = name;
 		this.method = method;
 		this.fqdn = fqdn;
@@ -21,6 +23,8 @@ public final class DebianPackageRepo {
 		this.login = login;
 		this.options = options;
 		this.keypath = keypath;
+		this.hostKey = hostKey;
+		this.pool = pool;
 	}
 
 	public String getName() {
@@ -79,4 +83,26 @@ public final class DebianPackageRepo {
 		this.keypath = keypath;
 	}
 
+	/**
+	 * @return public key of the host as in known_hosts, like <b>ssh-rsa AAAA...</b>, or <b>null</b> to look it up in known_hosts of the controller user
+	 */
+	public String getHostKey() {
+		return hostKey;
+	}
+
+	public void setHostKey(String hostKey) {
+		this.hostKey = hostKey;
+	}
+
+	/**
+	 * @return directory of the archive pool on the repository host, like <b>/srv/debian/pool/main</b>, or <b>null</b> if it is not known
+	 */
+	public String getPool() {
+		return pool;
+	}
+
+	public void setPool(String pool) {
+		this.pool = pool;
+	}
+
 }
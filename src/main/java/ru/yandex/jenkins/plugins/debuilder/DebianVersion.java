@@ -0,0 +1,224 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.Comparator;
+
+/**
+ * Immutable Debian package version <b>[epoch:]upstream[-revision]</b>,
+ * ordered the same way as <b>dpkg --compare-versions</b> does it.
+ */
+public final class DebianVersion implements Comparable<DebianVersion>, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Orders version strings as <b>dpkg --compare-versions</b>, useful to sort plain strings
+	 */
+	public static final Comparator<String> STRING_ORDER = new StringOrder();
+
+	private final long epoch;
+	private final String upstream;
+	private final String revision;
+	private final String string;
+
+	private DebianVersion(long epoch, String upstream, String revision, String string) {
+		this.epoch = epoch;
+		this.upstream = upstream;
+		this.revision = revision;
+		this.string = string;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the epoch is not a number, the upstream version is empty or there is a hyphen with nothing after it
+	 */
+	public static DebianVersion parse(String version) {
+		String trimmed = version.trim();
+
+		int colon = trimmed.indexOf(':');
+		long epoch = 0;
+		if (colon >= 0) {
+			if (colon == 0 || colon > 18) {
+				throw new IllegalArgumentException(MessageFormat.format("Bad epoch in version <{0}>", version));
+			}
+			for (int i = 0; i < colon; i++) {
+				char c = trimmed.charAt(i);
+				if (!isDigit(c)) {
+					throw new IllegalArgumentException(MessageFormat.format("Bad epoch in version <{0}>", version));
+				}
+				epoch = epoch * 10 + (c - '0');
+			}
+		}
+
+		int hyphen = trimmed.lastIndexOf('-');
+		String upstream;
+		String revision;
+		if (hyphen > colon) {
+			upstream = trimmed.substring(colon + 1, hyphen);
+			revision = trimmed.substring(hyphen + 1);
+			if (revision.length() == 0) {
+				throw new IllegalArgumentException(MessageFormat.format("Empty revision in <{0}>", version));
+			}
+		} else {
+			upstream = trimmed.substring(colon + 1);
+			revision = "";
+		}
+
+		if (upstream.length() == 0) {
+			throw new IllegalArgumentException(MessageFormat.format("Empty upstream version in <{0}>", version));
+		}
+
+		return new DebianVersion(epoch, upstream, revision, trimmed);
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public String getUpstream() {
+		return upstream;
+	}
+
+	/**
+	 * @return Debian revision or <b>empty string</b> for a native package
+	 */
+	public String getRevision() {
+		return revision;
+	}
+
+	@Override
+	public int compareTo(DebianVersion other) {
+		if (epoch != other.epoch) {
+			return epoch < other.epoch ? -1 : 1;
+		}
+
+		int result = compareFragment(upstream, other.upstream);
+		if (result != 0) {
+			return result;
+		}
+
+		return compareFragment(revision, other.revision);
+	}
+
+	/**
+	 * Compares upstream versions or revisions as dpkg's verrevcmp does:
+	 * alternating non-digit parts, compared by {@link #order(String, int)}, and digit parts, compared numerically
+	 *
+	 * @return negative, zero or positive, the sign is all that matters
+	 */
+	static int compareFragment(String a, String b) {
+		int i = 0;
+		int j = 0;
+
+		while (i < a.length() || j < b.length()) {
+			while ((i < a.length() && !isDigit(a.charAt(i))) || (j < b.length() && !isDigit(b.charAt(j)))) {
+				int ac = order(a, i);
+				int bc = order(b, j);
+				if (ac != bc) {
+					return ac - bc;
+				}
+				i++;
+				j++;
+			}
+
+			while (i < a.length() && a.charAt(i) == '0') {
+				i++;
+			}
+			while (j < b.length() && b.charAt(j) == '0') {
+				j++;
+			}
+
+			int firstDiff = 0;
+			while (i < a.length() && isDigit(a.charAt(i)) && j < b.length() && isDigit(b.charAt(j))) {
+				if (firstDiff == 0) {
+					firstDiff = a.charAt(i) - b.charAt(j);
+				}
+				i++;
+				j++;
+			}
+
+			if (i < a.length() && isDigit(a.charAt(i))) {
+				return 1;
+			}
+			if (j < b.length() && isDigit(b.charAt(j))) {
+				return -1;
+			}
+			if (firstDiff != 0) {
+				return firstDiff;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Weight of a character in a non-digit part: tilde sorts before anything, even the end of the part,
+	 * then go the end of the part and digits, then letters, then everything else
+	 */
+	private static int order(String s, int index) {
+		if (index >= s.length()) {
+			return 0;
+		}
+
+		char c = s.charAt(index);
+		if (isDigit(c)) {
+			return 0;
+		} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+			return c;
+		} else if (c == '~') {
+			return -1;
+		} else {
+			return c + 256;
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof DebianVersion && compareTo((DebianVersion) obj) == 0;
+	}
+
+	/**
+	 * Consistent with {@link #equals(Object)}: versions equal by dpkg rules, like <b>1.01</b> and <b>1.1</b>, share the hash code.
+	 * Leading zeros of numbers are skipped and an empty revision hashes as <b>0</b>.
+	 */
+	@Override
+	public int hashCode() {
+		return (int) (epoch ^ (epoch >>> 32)) * 961 + hashFragment(upstream) * 31 + hashFragment(revision);
+	}
+
+	private static int hashFragment(String fragment) {
+		int hash = 0;
+		boolean leadingZero = true;
+		for (int i = 0; i < fragment.length(); i++) {
+			char c = fragment.charAt(i);
+			if (isDigit(c)) {
+				if (c == '0' && leadingZero) {
+					continue;
+				}
+				leadingZero = false;
+			} else {
+				leadingZero = true;
+			}
+			hash = hash * 31 + c;
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return string;
+	}
+
+	private static final class StringOrder implements Comparator<String>, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int compare(String a, String b) {
+			return parse(a).compareTo(parse(b));
+		}
+	}
+}
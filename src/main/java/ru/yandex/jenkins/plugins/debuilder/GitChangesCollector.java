@@ -0,0 +1,168 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.errors.AmbiguousObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import ru.yandex.jenkins.plugins.debuilder.DebianPackageBuilder.Change;
+
+/**
+ * Walks git history in a remote WS from HEAD back to the given commit, collecting the commits that touch the module.
+ */
+public class GitChangesCollector implements FileCallable<GitChangesCollector.Result> {
+	private static final long serialVersionUID = 1L;
+
+	private final String gitPrefix;
+	private final String moduleRoot;
+	private final String oldRevision;
+	private final int limit;
+	private final String ourMessage;
+
+	/**
+	 * @param gitPrefix
+	 *            Directory of the clone relative to the workspace, may be null
+	 * @param moduleRoot
+	 *            Remote path of the module
+	 * @param oldRevision
+	 *            Commit (possibly abbreviated) to collect changes since, may be empty
+	 * @param limit
+	 *            Maximum number of changes to collect, see {@link ChangeCollector}
+	 * @param ourMessage
+	 *            Commit message used by the plugin
+	 */
+	public GitChangesCollector(String gitPrefix, String moduleRoot, String oldRevision, int limit, String ourMessage) {
+		this.gitPrefix = gitPrefix;
+		this.moduleRoot = moduleRoot;
+		this.oldRevision = oldRevision;
+		this.limit = limit;
+		this.ourMessage = ourMessage;
+	}
+
+	@Override
+	public Result invoke(File localWorkspace, VirtualChannel channel) throws IOException, InterruptedException {
+		File gitClonePath = localWorkspace;
+		if (gitPrefix != null)
+			gitClonePath = new File(localWorkspace, gitPrefix);
+
+		Repository repository = new FileRepositoryBuilder().setWorkTree(gitClonePath).findGitDir(gitClonePath).build();
+		try {
+			ObjectId head = repository.resolve(Constants.HEAD);
+			if (head == null) {
+				throw new IOException("Can't resolve HEAD in " + gitClonePath);
+			}
+
+			ObjectId old = resolveOld(repository);
+			if (old == null) {
+				return new Result(head.getName(), null);
+			}
+
+			RevWalk walk = new RevWalk(repository);
+			try {
+				walk.sort(RevSort.REVERSE);
+				walk.markStart(walk.parseCommit(head));
+				walk.markUninteresting(walk.parseCommit(old));
+
+				String path = getModulePath(repository.getWorkTree());
+				if (path.length() > 0) {
+					walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(Collections.singleton(path)), TreeFilter.ANY_DIFF));
+				}
+
+				ChangeCollector collector = new ChangeCollector(limit, ourMessage);
+				for (RevCommit commit: walk) {
+					collector.add(commit.getAuthorIdent().getName(), commit.getFullMessage().trim());
+				}
+
+				return new Result(head.getName(), new ArrayList<Change>(collector.getChanges()));
+			} catch (MissingObjectException e) {
+				return new Result(head.getName(), null);
+			} catch (IncorrectObjectTypeException e) {
+				// the abbreviation names something else than a commit
+				return new Result(head.getName(), null);
+			} finally {
+				walk.release();
+			}
+		} finally {
+			repository.close();
+		}
+	}
+
+	/**
+	 * @return the old revision, or null if it is not known or its abbreviation is ambiguous in the repository
+	 */
+	private ObjectId resolveOld(Repository repository) throws IOException {
+		if (oldRevision == null || oldRevision.length() == 0) {
+			return null;
+		}
+
+		try {
+			return repository.resolve(oldRevision + "^{commit}");
+		} catch (AmbiguousObjectException e) {
+			return null;
+		} catch (IncorrectObjectTypeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return path of the module relative to the work tree, with '/' separators, or empty string for the root
+	 */
+	private String getModulePath(File workTree) throws IOException {
+		String root = workTree.getCanonicalPath();
+		String module = new File(moduleRoot).getCanonicalPath();
+
+		if (module.equals(root) || !module.startsWith(root + File.separator)) {
+			return "";
+		}
+
+		return module.substring(root.length() + 1).replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Pojo to store the collected changes along with the HEAD commit
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String head;
+		private final List<Change> changes;
+
+		public Result(String head, List<Change> changes) {
+			this.head = head;
+			this.changes = changes;
+		}
+
+		/**
+		 * @return full SHA-1 of HEAD
+		 */
+		public String getHead() {
+			return head;
+		}
+
+		/**
+		 * @return changes since the old revision, or null if the old revision is unknown or not found in the repository
+		 */
+		public List<Change> getChanges() {
+			return changes;
+		}
+	}
+}
@@ -4,12 +4,23 @@ import hudson.EnvVars;
 import hudson.FilePath.FileCallable;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
+import hudson.model.Node;
 import hudson.plugins.git.GitSCM;
 import hudson.remoting.VirtualChannel;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import jenkins.model.Jenkins;
 
@@ -21,21 +32,36 @@ import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
 import ru.yandex.jenkins.plugins.debuilder.DebianPackageBuilder.DescriptorImpl;
 
 /**
- * Performs git commiting actions in a remote WS, namely, commiting changelog to the current branch
+ * Performs git commiting actions in a remote WS, namely, commiting changelog to the current branch and pushing it upstream.
+ * A rejected push is retried after fetching and rebasing the commit onto the new upstream head, with a jittered backoff,
+ * so that concurrent jobs pushing to the same branch all get through in one round trip.
+ * The git executable of a node is resolved once per {@link #GIT_EXE_TTL}.
  * Note to future self: all the fields should be serializable
- * 
+ *
  * @author pupssman
- * 
+ *
  */
-public class GitCommitHelper implements FileCallable<Boolean> {
+public class GitCommitHelper implements FileCallable<GitCommitHelper.Result> {
 
 	private static final long serialVersionUID = 1L;
+	private static final int MAX_ATTEMPTS = 6;
+	private static final long BASE_BACKOFF = 500;
+	private static final long MAX_BACKOFF = 8000;
+	private static final long GIT_EXE_TTL = 10 * 60 * 1000L;
+	private static final String COMMITTER_NAME = "Jenkins";
+
+	private static final ConcurrentMap<String, ResolvedGitExe> GIT_EXES = new ConcurrentHashMap<String, ResolvedGitExe>();
+
 	private final EnvVars environment;
 	private final TaskListener listener;
 	private final String gitExe;
 	private final String gitPrefix;
 	private final String accountName;
 	private final String commitMessage;
+	private final String remote;
+	private final String branch;
+	private final boolean lookupReused;
+	private final long lookupSavedMillis;
 	private Collection<String> modules;
 
 	public GitCommitHelper(AbstractBuild<?, ?> build, GitSCM scm, Runner runner, String commitMessage, Collection<String> modules) throws IOException, InterruptedException {
@@ -43,13 +69,58 @@ public class GitCommitHelper implements FileCallable<Boolean> {
 		this.modules = modules;
 		this.environment = build.getEnvironment(runner.getListener());
 		this.listener = runner.getListener();
-		this.gitExe = scm.getGitExe(build.getBuiltOn(), listener);
+		ResolvedGitExe resolved = resolveGitExe(build.getBuiltOn(), scm, listener);
+		this.gitExe = resolved.exe;
+		this.lookupReused = resolved.reused;
+		this.lookupSavedMillis = resolved.getSavedMillis();
 		this.gitPrefix = scm.getRelativeTargetDir();
 		this.accountName = ((DescriptorImpl) Jenkins.getInstance().getDescriptor(DebianPackageBuilder.class)).getAccountName();
+
+		// GIT_BRANCH looks like origin/master
+		String gitBranch = environment.get("GIT_BRANCH");
+		if (gitBranch == null || gitBranch.length() == 0) {
+			throw new IOException("GIT_BRANCH is not set, don't know where to push");
+		}
+		int slash = gitBranch.indexOf('/');
+		if (slash < 0) {
+			this.remote = "origin";
+			this.branch = gitBranch;
+		} else {
+			this.remote = gitBranch.substring(0, slash);
+			this.branch = gitBranch.substring(slash + 1);
+		}
+	}
+
+	/**
+	 * @return true if the git executable was resolved by an earlier build
+	 */
+	public boolean isLookupReused() {
+		return lookupReused;
+	}
+
+	/**
+	 * @return time it took to resolve the git executable, if it was resolved by an earlier build; 0 otherwise
+	 */
+	public long getLookupSavedMillis() {
+		return lookupSavedMillis;
+	}
+
+	private static ResolvedGitExe resolveGitExe(Node node, GitSCM scm, TaskListener listener) {
+		String key = node.getNodeName() + ":" + scm.getGitTool();
+		ResolvedGitExe resolved = GIT_EXES.get(key);
+		if (resolved != null && System.currentTimeMillis() - resolved.resolvedAt < GIT_EXE_TTL) {
+			return resolved.reuse();
+		}
+
+		long start = System.currentTimeMillis();
+		String exe = scm.getGitExe(node, listener);
+		resolved = new ResolvedGitExe(exe, System.currentTimeMillis() - start);
+		GIT_EXES.put(key, resolved);
+		return resolved;
 	}
 
 	@Override
-	public Boolean invoke(File localWorkspace, VirtualChannel channel) throws IOException, InterruptedException {
+	public Result invoke(File localWorkspace, VirtualChannel channel) throws IOException, InterruptedException {
 
 		File gitClonePath = localWorkspace;
 		if (gitPrefix != null)
@@ -57,18 +128,212 @@ public class GitCommitHelper implements FileCallable<Boolean> {
 
 		GitClient git = Git.with(listener, environment).in(gitClonePath).using(gitExe).getClient();
 
-		if (git.hasGitRepo()) {
+		if (!git.hasGitRepo()) {
+			throw new IOException(MessageFormat.format("There is no git repository in {0}", gitClonePath));
+		}
+
+		PersonIdent person = new PersonIdent(COMMITTER_NAME, accountName);
+		for (String module : modules) {
+			git.add(new File(module, "debian/changelog").getCanonicalPath());
+		}
+		git.commit(commitMessage, person, person);
+
+		return push(gitClonePath);
+	}
+
+	/**
+	 * Pushes HEAD to the branch, fetching and rebasing onto the fresh upstream head whenever the push is rejected
+	 */
+	private Result push(File repository) throws IOException, InterruptedException {
+		String refspec = "HEAD:refs/heads/" + branch;
+		String upstream = remote + "/" + branch;
+		Random random = new Random();
+		long start = System.currentTimeMillis();
+		long waited = 0;
 
-			PersonIdent person = new PersonIdent("Jenkins", accountName);
-			for (String module : modules) {
-				git.add(new File(module, "debian/changelog").getCanonicalPath());
+		for (int attempt = 1; ; attempt++) {
+			GitOutcome push = git(repository, "push", remote, refspec);
+			if (push.exitCode == 0) {
+				return new Result(attempt, waited, System.currentTimeMillis() - start);
 			}
-			git.commit(commitMessage, person, person);
 
-			return true;
-		} else {
-			return false;
+			if (!push.isRejected()) {
+				throw new PushFailedException(MessageFormat.format("Failed to push to {0}, git exited with code {1}", upstream, push.exitCode), attempt - 1, waited);
+			}
+
+			if (attempt == MAX_ATTEMPTS) {
+				throw new PushFailedException(MessageFormat.format("Push to {0} was rejected {1} times in a row", upstream, attempt), attempt, waited);
+			}
+
+			// random delay within the upper half of the exponential one, so racing jobs spread out
+			long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << (attempt - 1));
+			delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+			listener.getLogger().println(MessageFormat.format("Push to {0} was rejected, retrying in {1} ms", upstream, String.valueOf(delay)));
+			Thread.sleep(delay);
+			waited += delay;
+
+			if (git(repository, "fetch", remote, "+refs/heads/" + branch + ":refs/remotes/" + upstream).exitCode != 0) {
+				throw new PushFailedException(MessageFormat.format("Failed to fetch {0}", upstream), attempt, waited);
+			}
+
+			if (git(repository, "rebase", upstream).exitCode != 0) {
+				git(repository, "rebase", "--abort");
+				throw new PushFailedException(MessageFormat.format("Failed to rebase the changelog commit onto {0}, see git output above", upstream), attempt, waited);
+			}
+		}
+	}
+
+	/**
+	 * Runs git in the repository with the build's environment, copying its output to the build log.
+	 * The committer is set to the plugin's account, so that rebase works on nodes without a configured git identity,
+	 * and the locale is forced to C, so that {@link GitOutcome#isRejected()} can read the messages on localized nodes.
+	 */
+	private GitOutcome git(File repository, String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(gitExe);
+		command.addAll(Arrays.asList(args));
+
+		ProcessBuilder builder = new ProcessBuilder(command).directory(repository).redirectErrorStream(true);
+		builder.environment().putAll(environment);
+		builder.environment().put("GIT_COMMITTER_NAME", COMMITTER_NAME);
+		builder.environment().put("GIT_COMMITTER_EMAIL", accountName);
+		builder.environment().put("LC_ALL", "C");
+		builder.environment().put("LANGUAGE", "C");
+
+		Process process = builder.start();
+		try {
+			process.getOutputStream().close();
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			InputStream input = process.getInputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+
+			int exitCode = process.waitFor();
+			listener.getLogger().println(MessageFormat.format("git {0} exited with code {1}", args[0], String.valueOf(exitCode)));
+			output.writeTo(listener.getLogger());
+			return new GitOutcome(exitCode, output.toString());
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Exit code and output of a git run
+	 */
+	private static final class GitOutcome {
+		private final int exitCode;
+		private final String output;
+
+		public GitOutcome(int exitCode, String output) {
+			this.exitCode = exitCode;
+			this.output = output;
+		}
+
+		/**
+		 * @return true if a push was rejected because the remote branch moved on, as opposed to auth or network failures
+		 */
+		public boolean isRejected() {
+			return output.contains("[rejected]") && (output.contains("(fetch first)") || output.contains("(non-fast-forward)"));
+		}
+	}
+
+	/**
+	 * Failure to push, with the contention seen before it
+	 */
+	public static final class PushFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int rejections;
+		private final long backoffMillis;
+
+		public PushFailedException(String message, int rejections, long backoffMillis) {
+			super(message);
+			this.rejections = rejections;
+			this.backoffMillis = backoffMillis;
+		}
+
+		/**
+		 * @return number of pushes rejected as non-fast-forward
+		 */
+		public int getRejections() {
+			return rejections;
+		}
+
+		/**
+		 * @return time spent waiting between the attempts
+		 */
+		public long getBackoffMillis() {
+			return backoffMillis;
+		}
+	}
+
+	/**
+	 * Pojo to pass the outcome of the push back to the controller
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int attempts;
+		private final long backoffMillis;
+		private final long millis;
+
+		public Result(int attempts, long backoffMillis, long millis) {
+			this.attempts = attempts;
+			this.backoffMillis = backoffMillis;
+			this.millis = millis;
+		}
+
+		/**
+		 * @return number of pushes made, 1 if there was no contention
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * @return time spent waiting between the attempts
+		 */
+		public long getBackoffMillis() {
+			return backoffMillis;
+		}
+
+		/**
+		 * @return time spent pushing, including retries
+		 */
+		public long getMillis() {
+			return millis;
 		}
 	}
 
+	/**
+	 * Git executable of a node, as resolved by {@link GitSCM#getGitExe(Node, TaskListener)}
+	 */
+	private static final class ResolvedGitExe {
+		private final String exe;
+		private final long millis;
+		private final long resolvedAt = System.currentTimeMillis();
+		private final boolean reused;
+
+		public ResolvedGitExe(String exe, long millis) {
+			this(exe, millis, false);
+		}
+
+		private ResolvedGitExe(String exe, long millis, boolean reused) {
+			this.exe = exe;
+			this.millis = millis;
+			this.reused = reused;
+		}
+
+		public ResolvedGitExe reuse() {
+			return new ResolvedGitExe(exe, millis, true);
+		}
+
+		public long getSavedMillis() {
+			return reused ? millis : 0;
+		}
+	}
 }
@@ -0,0 +1,305 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Controller-wide counters and histograms of the plugin's activity.
+ * Every series is a set of {@link AtomicLong}s, so recording never takes a lock.
+ * Exposed as a JMX MBean and in Prometheus text format, see {@link MetricsAction}.
+ */
+public class Metrics implements DynamicMBean {
+	private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+	private static final String OBJECT_NAME = "ru.yandex.jenkins.plugins.debuilder:type=Metrics";
+
+	// phase durations, in milliseconds
+	private static final long[] MILLIS_BUCKETS = {100, 500, 1000, 5000, 10000, 30000, 60000, 300000, 900000, 1800000, 3600000};
+	// artifact sizes, in bytes
+	private static final long[] BYTES_BUCKETS = {1L << 10, 1L << 14, 1L << 18, 1L << 20, 1L << 22, 1L << 24, 1L << 26, 1L << 28, 1L << 30};
+	// hit ratios, in percents
+	private static final long[] PERCENT_BUCKETS = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100};
+
+	private static final Metrics INSTANCE = new Metrics();
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Failed to register metrics MBean", e);
+		}
+	}
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * A package of a module was built
+	 */
+	public void built() {
+		counter(series("debian_package_builds_total")).incrementAndGet();
+	}
+
+	/**
+	 * A module was not built, see {@link DebianPackageBuilder}
+	 *
+	 * @param reason
+	 *            Short reason, like "unchanged" or "no_changes"
+	 */
+	public void skipped(String reason) {
+		counter(series("debian_package_skips_total", "reason", reason)).incrementAndGet();
+	}
+
+	/**
+	 * Packages of a build were released to the repository
+	 */
+	public void released(String repo) {
+		counter(series("debian_package_repo_builds_total", "repo", repo)).incrementAndGet();
+	}
+
+	/**
+	 * A module was uploaded to the repository, successfully or not
+	 */
+	public void uploaded(String repo, boolean success) {
+		counter(series(success ? "debian_package_uploads_total" : "debian_package_upload_failures_total", "repo", repo)).incrementAndGet();
+	}
+
+	/**
+	 * Files were not uploaded since the repository already had them
+	 */
+	public void uploadSkipped(String repo, long bytes) {
+		counter(series("debian_package_upload_skipped_bytes_total", "repo", repo)).addAndGet(bytes);
+	}
+
+	/**
+	 * A node-side or controller-side cache was consulted
+	 *
+	 * @param cache
+	 *            Name of the cache, like "tools" or "chroot"
+	 * @param hit
+	 *            Whether the cached state was used as is
+	 */
+	public void cache(String cache, boolean hit) {
+		counter(series(hit ? "debian_package_cache_hits_total" : "debian_package_cache_misses_total", "cache", cache)).incrementAndGet();
+	}
+
+	/**
+	 * A changelog commit was pushed to git, or given up on
+	 *
+	 * @param rejections
+	 *            Number of pushes rejected as non-fast-forward
+	 * @param backoffMillis
+	 *            Time spent waiting between the attempts
+	 */
+	public void gitPushed(boolean success, int rejections, long backoffMillis) {
+		counter(series(success ? "debian_package_git_pushes_total" : "debian_package_git_push_failures_total")).incrementAndGet();
+		counter(series("debian_package_git_push_rejections_total")).addAndGet(rejections);
+		counter(series("debian_package_git_push_backoff_milliseconds_total")).addAndGet(backoffMillis);
+	}
+
+	public void phase(String phase, long millis) {
+		histogram(series("debian_package_phase_seconds", "phase", phase), MILLIS_BUCKETS, 1000).observe(millis);
+	}
+
+	public void artifact(long bytes) {
+		histogram(series("debian_package_artifact_bytes"), BYTES_BUCKETS, 1).observe(bytes);
+	}
+
+	public void compilerCacheHitRatio(int percent) {
+		histogram(series("debian_package_compiler_cache_hit_percent"), PERCENT_BUCKETS, 1).observe(percent);
+	}
+
+	/**
+	 * Writes all the series in Prometheus text exposition format
+	 */
+	public void write(PrintWriter out) {
+		String lastName = null;
+		for (Map.Entry<String, AtomicLong> counter: new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			String name = nameOf(counter.getKey());
+			if (!name.equals(lastName)) {
+				out.println("# TYPE " + name + " counter");
+				lastName = name;
+			}
+			out.println(counter.getKey() + " " + counter.getValue().get());
+		}
+
+		for (Map.Entry<String, Histogram> histogram: new TreeMap<String, Histogram>(histograms).entrySet()) {
+			String name = nameOf(histogram.getKey());
+			if (!name.equals(lastName)) {
+				out.println("# TYPE " + name + " histogram");
+				lastName = name;
+			}
+			histogram.getValue().write(out, name, labelsOf(histogram.getKey()));
+		}
+	}
+
+	private AtomicLong counter(String series) {
+		AtomicLong counter = counters.get(series);
+		if (counter == null) {
+			counters.putIfAbsent(series, new AtomicLong());
+			counter = counters.get(series);
+		}
+		return counter;
+	}
+
+	private Histogram histogram(String series, long[] buckets, double scale) {
+		Histogram histogram = histograms.get(series);
+		if (histogram == null) {
+			histograms.putIfAbsent(series, new Histogram(buckets, scale));
+			histogram = histograms.get(series);
+		}
+		return histogram;
+	}
+
+	private static String series(String name) {
+		return name;
+	}
+
+	private static String series(String name, String label, String value) {
+		String escaped = value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return name + "{" + label + "=\"" + escaped + "\"}";
+	}
+
+	private static String nameOf(String series) {
+		int brace = series.indexOf('{');
+		return brace < 0 ? series : series.substring(0, brace);
+	}
+
+	private static String labelsOf(String series) {
+		int brace = series.indexOf('{');
+		return brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		AtomicLong counter = counters.get(attribute);
+		if (counter != null) {
+			return counter.get();
+		}
+
+		String series = attribute.replaceAll("_(count|sum)$", "");
+		Histogram histogram = histograms.get(series);
+		if (histogram != null) {
+			return attribute.endsWith("_count") ? (Object) histogram.count.get() : (Object) (histogram.sum.get() / histogram.scale);
+		}
+
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList result = new AttributeList();
+		for (String attribute: attributes) {
+			try {
+				result.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// series may be missing, skip it as the contract allows
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String series: new TreeMap<String, AtomicLong>(counters).keySet()) {
+			attributes.add(new MBeanAttributeInfo(series, Long.class.getName(), "Counter", true, false, false));
+		}
+		for (String series: new TreeMap<String, Histogram>(histograms).keySet()) {
+			attributes.add(new MBeanAttributeInfo(series + "_count", Long.class.getName(), "Number of observations", true, false, false));
+			attributes.add(new MBeanAttributeInfo(series + "_sum", Double.class.getName(), "Sum of observations", true, false, false));
+		}
+
+		return new MBeanInfo(getClass().getName(), "Debian package builder metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+	}
+
+	/**
+	 * Cumulative histogram with fixed upper bounds, values are recorded as longs in the base unit
+	 */
+	private static final class Histogram {
+		private final long[] bounds;
+		private final double scale;
+		private final AtomicLongArray buckets;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+
+		/**
+		 * @param bounds
+		 *            Upper bounds of the buckets, ascending
+		 * @param scale
+		 *            How many base units make one exported unit
+		 */
+		public Histogram(long[] bounds, double scale) {
+			this.bounds = bounds;
+			this.scale = scale;
+			this.buckets = new AtomicLongArray(bounds.length);
+		}
+
+		public void observe(long value) {
+			for (int i = 0; i < bounds.length; i++) {
+				if (value <= bounds[i]) {
+					buckets.incrementAndGet(i);
+					break;
+				}
+			}
+			count.incrementAndGet();
+			sum.addAndGet(value);
+		}
+
+		public void write(PrintWriter out, String name, String labels) {
+			String prefix = labels.length() == 0 ? "" : labels + ",";
+			long cumulative = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				cumulative += buckets.get(i);
+				out.println(name + "_bucket{" + prefix + "le=\"" + format(bounds[i] / scale) + "\"} " + cumulative);
+			}
+			long total = count.get();
+			out.println(name + "_bucket{" + prefix + "le=\"+Inf\"} " + Math.max(total, cumulative));
+
+			String suffix = labels.length() == 0 ? "" : "{" + labels + "}";
+			out.println(name + "_sum" + suffix + " " + format(sum.get() / scale));
+			out.println(name + "_count" + suffix + " " + total);
+		}
+
+		private static String format(double value) {
+			return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+		}
+	}
+}
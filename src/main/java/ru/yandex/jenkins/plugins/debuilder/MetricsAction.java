@@ -0,0 +1,42 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link Metrics} in Prometheus text exposition format at <b>/debian-package-builder-metrics/</b>
+ */
+@Extension
+public class MetricsAction implements RootAction {
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Debian package builder metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "debian-package-builder-metrics";
+	}
+
+	public void doIndex(StaplerRequest request, StaplerResponse response) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+		response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		Metrics.get().write(out);
+		out.flush();
+	}
+}
@@ -0,0 +1,45 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.model.Action;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Remembers the content hash of a module as it was when the build ran, see {@link ModuleHasher}
+ */
+@ExportedBean
+public class ModuleHashAction implements Action {
+	private final String module;
+	private final String hash;
+
+	public ModuleHashAction(String module, String hash) {
+		this.module = module;
+		this.hash = hash;
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return null;
+	}
+
+	@Override
+	public String getUrlName() {
+		return null;
+	}
+
+	@Exported
+	public String getModule() {
+		return module;
+	}
+
+	@Exported
+	public String getHash() {
+		return hash;
+	}
+}
@@ -0,0 +1,108 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jedi.functional.FunctionalPrimitives;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Computes a content hash of a module on the remote side.
+ * Every file is hashed separately and the module hash is the hash of the sorted list of
+ * relative paths with their file hashes, so any added, removed, renamed or changed file changes it.
+ * Files written by the plugin and by debuild themselves are ignored.
+ */
+public class ModuleHasher implements FileCallable<String> {
+	private static final long serialVersionUID = 1L;
+
+	private static final String[] BUILD_OUTPUTS = new String[] {
+		"debian/changelog", "debian/files", "debian/*.substvars", "debian/*.debhelper", "debian/*.debhelper.log",
+		"debian/debhelper-build-stamp", "debian/tmp/**", "debian/.debhelper/**", "**/*.deb",
+	};
+
+	private final String ignores;
+
+	/**
+	 * @param ignores
+	 *            Comma-separated Ant patterns of additional files to ignore, may be null
+	 */
+	public ModuleHasher(String ignores) {
+		this.ignores = ignores;
+	}
+
+	@Override
+	public String invoke(File module, VirtualChannel channel) throws IOException, InterruptedException {
+		List<String> excludes = new ArrayList<String>(Arrays.asList(BUILD_OUTPUTS));
+
+		// debhelper stages every binary package in debian/<package>
+		File control = new File(module, "debian/control");
+		if (control.isFile()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(control), "UTF-8"));
+			try {
+				for (String binary: ControlFile.Parser.parse(reader).getPackages()) {
+					excludes.add("debian/" + binary + "/**");
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		if (ignores != null && ignores.trim().length() > 0) {
+			excludes.add(ignores);
+		}
+
+		FileSet fileSet = Util.createFileSet(module, "**", FunctionalPrimitives.join(excludes, ","));
+		DirectoryScanner scanner = fileSet.getDirectoryScanner(new org.apache.tools.ant.Project());
+		String[] files = scanner.getIncludedFiles();
+		Arrays.sort(files);
+
+		MessageDigest tree = newDigest();
+		MessageDigest file = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+
+		for (String relative: files) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+
+			InputStream stream = new FileInputStream(new File(module, relative));
+			try {
+				int read;
+				while ((read = stream.read(buffer)) > 0) {
+					file.update(buffer, 0, read);
+				}
+			} finally {
+				stream.close();
+			}
+
+			tree.update(relative.replace(File.separatorChar, '/').getBytes("UTF-8"));
+			tree.update((byte) 0);
+			tree.update(file.digest());
+		}
+
+		return DebUtils.toHex(tree.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+		}
+	}
+}
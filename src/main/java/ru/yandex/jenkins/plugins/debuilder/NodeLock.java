@@ -0,0 +1,69 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Controller-side lock of a named resource of a node, like the dpkg database or a chroot image,
+ * for the executors of the node not to step on each other.
+ * Locks are reentrant and are reference-counted, so a lock is forgotten once nobody holds or waits for it.
+ */
+public final class NodeLock {
+	/**
+	 * Name of the lock guarding the dpkg database and apt of a node
+	 */
+	public static final String DPKG = "dpkg";
+
+	private static final Map<String, NodeLock> LOCKS = new HashMap<String, NodeLock>();
+
+	private final String key;
+	private final ReentrantLock lock = new ReentrantLock();
+	private int users;
+
+	private NodeLock(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Waits for the lock, the caller must {@link #release()} it afterwards
+	 *
+	 * @param node
+	 *            Name of the node, empty for the controller
+	 * @param resource
+	 *            Name of the resource on the node
+	 */
+	public static NodeLock acquire(String node, String resource) throws InterruptedException {
+		String key = node + ":" + resource;
+		NodeLock result;
+		synchronized (LOCKS) {
+			result = LOCKS.get(key);
+			if (result == null) {
+				result = new NodeLock(key);
+				LOCKS.put(key, result);
+			}
+			result.users++;
+		}
+
+		try {
+			result.lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			result.forget();
+			throw e;
+		}
+		return result;
+	}
+
+	public void release() {
+		lock.unlock();
+		forget();
+	}
+
+	private void forget() {
+		synchronized (LOCKS) {
+			if (--users == 0) {
+				LOCKS.remove(key);
+			}
+		}
+	}
+}
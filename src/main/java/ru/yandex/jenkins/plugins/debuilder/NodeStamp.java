@@ -0,0 +1,126 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * A small marker file kept in the node root, used to remember that some expensive
+ * per-node preparation was already done. The stamp holds a key describing what was done
+ * and is considered valid only while the key matches and the stamp is younger than the given TTL.
+ * Each operation is a single remoting call.
+ */
+public class NodeStamp {
+	private static final String STAMPS_DIR = "debian-package-builder";
+
+	private final FilePath file;
+
+	/**
+	 * @param nodeRoot
+	 *            Root of the node the stamp belongs to
+	 * @param name
+	 *            Name of the stamp, should be a valid file name
+	 */
+	public NodeStamp(FilePath nodeRoot, String name) {
+		this.file = nodeRoot.child(STAMPS_DIR).child(name + ".stamp");
+	}
+
+	/**
+	 * @param key
+	 *            The expected key
+	 * @param ttl
+	 *            Maximum age of the stamp in milliseconds, non-positive value means no expiration
+	 * @return true if the stamp exists, holds the same key and is not expired
+	 */
+	public boolean isFresh(String key, long ttl) throws IOException, InterruptedException {
+		return file.act(new Check(key, ttl));
+	}
+
+	/**
+	 * Writes down the stamp, replacing the existing one
+	 *
+	 * @param key
+	 *            The key to remember
+	 * @param details
+	 *            Free-form text stored after the key, for humans only
+	 */
+	public void record(String key, String details) throws IOException, InterruptedException {
+		file.act(new Record(key, details));
+	}
+
+	/**
+	 * Removes the stamp, if any
+	 */
+	public void invalidate() throws IOException, InterruptedException {
+		file.delete();
+	}
+
+	private static final class Check implements FileCallable<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final String key;
+		private final long ttl;
+
+		public Check(String key, long ttl) {
+			this.key = key;
+			this.ttl = ttl;
+		}
+
+		@Override
+		public Boolean invoke(File stamp, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!stamp.isFile()) {
+				return false;
+			}
+
+			if (ttl > 0 && System.currentTimeMillis() - stamp.lastModified() > ttl) {
+				return false;
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stamp), "UTF-8"));
+			try {
+				return key.equals(reader.readLine());
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	private static final class Record implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final String key;
+		private final String details;
+
+		public Record(String key, String details) {
+			this.key = key;
+			this.details = details;
+		}
+
+		@Override
+		public Void invoke(File stamp, VirtualChannel channel) throws IOException, InterruptedException {
+			File dir = stamp.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Failed to create " + dir.getAbsolutePath());
+			}
+
+			Writer writer = new OutputStreamWriter(new FileOutputStream(stamp), "UTF-8");
+			try {
+				writer.write(key);
+				writer.write("\n");
+				writer.write(details);
+				writer.write("\n");
+			} finally {
+				writer.close();
+			}
+
+			return null;
+		}
+	}
+}
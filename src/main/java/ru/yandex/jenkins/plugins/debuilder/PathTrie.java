@@ -0,0 +1,88 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of directory paths, precompiled into a trie of path segments,
+ * which can quickly tell whether a given path lies under any of them.
+ * Paths are '/'-separated, leading and repeated separators are ignored.
+ */
+public class PathTrie {
+	private final Node root = new Node();
+
+	/**
+	 * Adds a directory to the set
+	 */
+	public void add(String directory) {
+		Node node = root;
+		for (String segment: directory.split("/")) {
+			if (segment.length() == 0) {
+				continue;
+			}
+			Node child = node.children.get(segment);
+			if (child == null) {
+				child = new Node();
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		node.terminal = true;
+	}
+
+	/**
+	 * @return true if the path is one of the directories or lies under one of them
+	 */
+	public boolean matches(String path) {
+		Node node = root;
+		if (node.terminal) {
+			return true;
+		}
+
+		int start = 0;
+		int length = path.length();
+		while (start <= length) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+
+			if (end > start) {
+				node = node.children.get(path.substring(start, end));
+				if (node == null) {
+					return false;
+				}
+				if (node.terminal) {
+					return true;
+				}
+			}
+
+			start = end + 1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if any of the paths matches; an empty collection matches too, since nothing is known about the change
+	 */
+	public boolean matchesAny(Collection<String> paths) {
+		if (paths == null || paths.isEmpty()) {
+			return true;
+		}
+
+		for (String path: paths) {
+			if (matches(path)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static final class Node {
+		private final Map<String, Node> children = new HashMap<String, Node>(4);
+		private boolean terminal = false;
+	}
+}
@@ -0,0 +1,150 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records how long every phase of building and releasing packages took in a build,
+ * along with the number of commands run and bytes transferred in each phase
+ */
+@ExportedBean
+public class PhaseTimingAction implements Action {
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * @return the action of the build, added to it on first use
+	 */
+	public static PhaseTimingAction of(AbstractBuild<?, ?> build) {
+		synchronized (build) {
+			PhaseTimingAction action = build.getAction(PhaseTimingAction.class);
+			if (action == null) {
+				action = new PhaseTimingAction();
+				build.addAction(action);
+			}
+			return action;
+		}
+	}
+
+	public synchronized void add(Phase phase) {
+		phases.add(phase);
+	}
+
+	@Exported
+	public synchronized List<Phase> getPhases() {
+		return new ArrayList<Phase>(phases);
+	}
+
+	/**
+	 * @return total time of each phase over all modules, in order of first appearance
+	 */
+	public synchronized Map<String, Long> getTotals() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Phase phase: phases) {
+			Long total = result.get(phase.getName());
+			result.put(phase.getName(), (total == null ? 0 : total) + phase.getMillis());
+		}
+		return result;
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return null;
+	}
+
+	@Override
+	public String getUrlName() {
+		return null;
+	}
+
+	/**
+	 * Pojo to store timing of a single phase
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Phase {
+		private final String module;
+		private final String name;
+		private long millis;
+		private int commands;
+		private long bytes;
+		private long savedMillis;
+
+		/**
+		 * @param module
+		 *            The module the phase belongs to, or null if the phase is not module-specific
+		 * @param name
+		 *            Name of the phase
+		 */
+		public Phase(String module, String name) {
+			this.module = module;
+			this.name = name;
+		}
+
+		@Exported
+		public String getModule() {
+			return module;
+		}
+
+		@Exported
+		public String getName() {
+			return name;
+		}
+
+		@Exported
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * @return number of external commands run during the phase
+		 */
+		@Exported
+		public int getCommands() {
+			return commands;
+		}
+
+		/**
+		 * @return bytes sent to the controller during the phase: command output and archived files
+		 */
+		@Exported
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return time the phase would have taken longer without reusing cached state, as far as it is known
+		 */
+		@Exported
+		public long getSavedMillis() {
+			return savedMillis;
+		}
+
+		void setMillis(long millis) {
+			this.millis = millis;
+		}
+
+		void addCommand() {
+			commands++;
+		}
+
+		void addBytes(long count) {
+			bytes += count;
+		}
+
+		void addSavedMillis(long millis) {
+			savedMillis += millis;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Project;
+import hudson.tasks.Builder;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+
+/**
+ * Shows a trend of phase timings of the recent builds on the job page, see {@link PhaseTimingAction}
+ */
+public class PhaseTimingProjectAction implements Action {
+	private static final int MAX_BUILDS = 30;
+
+	private final AbstractProject<?, ?> project;
+
+	public PhaseTimingProjectAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	/**
+	 * @return the action for the project if the builder is the first of the plugin's builders in it, so the graph is shown once
+	 */
+	@SuppressWarnings("rawtypes")
+	static Collection<? extends Action> forBuilder(AbstractProject<?, ?> project, Builder builder) {
+		if (project instanceof Project) {
+			for (Object candidate: ((Project) project).getBuilders()) {
+				if (candidate instanceof DebianPackageBuilder || candidate instanceof DebianModulesBuilder) {
+					if (candidate != builder) {
+						return Collections.emptyList();
+					}
+					break;
+				}
+			}
+		}
+
+		return Collections.singletonList(new PhaseTimingProjectAction(project));
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Debian package build phases";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "debianPhaseTimings";
+	}
+
+	/**
+	 * Called on every render of the job page, so only looks at the latest builds, not at the whole graph range
+	 *
+	 * @return true if the last build, or the last completed one while a build is running, has timings to show
+	 */
+	public boolean hasData() {
+		AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+		if (lastBuild == null) {
+			return false;
+		}
+		if (lastBuild.getAction(PhaseTimingAction.class) != null) {
+			return true;
+		}
+
+		AbstractBuild<?, ?> lastCompletedBuild = project.getLastCompletedBuild();
+		return lastCompletedBuild != null && lastCompletedBuild != lastBuild && lastCompletedBuild.getAction(PhaseTimingAction.class) != null;
+	}
+
+	/**
+	 * @return stacked graph of phase durations, in seconds, of the recent builds, see <b>graph/png</b>
+	 */
+	public Graph getGraph() {
+		AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+		Calendar timestamp = lastBuild == null ? Calendar.getInstance() : lastBuild.getTimestamp();
+
+		return new Graph(timestamp, 500, 200) {
+			@Override
+			protected JFreeChart createGraph() {
+				DataSetBuilder<String, NumberOnlyBuildLabel> data = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+
+				int count = 0;
+				for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null && count < MAX_BUILDS; build = build.getPreviousBuild(), count++) {
+					PhaseTimingAction action = build.getAction(PhaseTimingAction.class);
+					if (action == null) {
+						continue;
+					}
+					for (Map.Entry<String, Long> total: action.getTotals().entrySet()) {
+						data.add(total.getValue() / 1000.0, total.getKey(), new NumberOnlyBuildLabel(build));
+					}
+				}
+
+				return ChartFactory.createStackedAreaChart(null, null, "seconds", data.build(), PlotOrientation.VERTICAL, true, true, false);
+			}
+		};
+	}
+}
@@ -0,0 +1,183 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.EnvVars;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ProcessTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs processes on the node it lives on, directly via {@link ProcessBuilder}.
+ * One instance is created per remoting channel and reused for every command of every build on that node,
+ * so a command costs a single remote call instead of a temp script, a shell and a launcher round-trip.
+ * An aborted command is killed with all its descendants, as a launcher would do.
+ */
+public interface ProcessExecutor {
+	/**
+	 * Runs the process and waits for it to finish
+	 *
+	 * @param workDir
+	 *            Working directory of the process
+	 * @param env
+	 *            Environment variables to add to (or override in) the node environment
+	 * @param args
+	 *            The command and its arguments, passed as is
+	 * @param out
+	 *            Where both stdout and stderr go, in chunks as they are read
+	 * @return exit code and the time the process took on the node
+	 */
+	Result execute(String workDir, Map<String, String> env, String[] args, OutputStream out) throws IOException, InterruptedException;
+
+	/**
+	 * Pojo to pass process outcome back to the controller
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int exitCode;
+		private final long millis;
+
+		public Result(int exitCode, long millis) {
+			this.exitCode = exitCode;
+			this.millis = millis;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		/**
+		 * @return time from process start to its exit, as measured on the node
+		 */
+		public long getMillis() {
+			return millis;
+		}
+	}
+
+	/**
+	 * Hands out executors, one per channel, forgetting them when their channel is closed
+	 */
+	public static final class Cache {
+		// the exported executors refer to their channels, so a weak map would never let go of them
+		private static final Map<VirtualChannel, ProcessExecutor> EXECUTORS = new HashMap<VirtualChannel, ProcessExecutor>();
+
+		private Cache() {
+		}
+
+		/**
+		 * @return executor living on the other side of the channel, created on first use
+		 */
+		public static ProcessExecutor get(VirtualChannel channel) throws IOException, InterruptedException {
+			synchronized (EXECUTORS) {
+				ProcessExecutor executor = EXECUTORS.get(channel);
+				if (executor == null) {
+					executor = channel.call(new Starter());
+					if (channel instanceof Channel) {
+						((Channel) channel).addListener(new Channel.Listener() {
+							@Override
+							public void onClosed(Channel closed, IOException cause) {
+								synchronized (EXECUTORS) {
+									EXECUTORS.remove(closed);
+								}
+							}
+						});
+					}
+					EXECUTORS.put(channel, executor);
+				}
+				return executor;
+			}
+		}
+	}
+
+	/**
+	 * Creates the executor on the node and exports it back to the controller
+	 */
+	static final class Starter implements Callable<ProcessExecutor, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public ProcessExecutor call() throws IOException {
+			Channel channel = Channel.current();
+			ProcessExecutor executor = new Local();
+			// on the controller itself there is no channel, and nothing to export
+			return channel == null ? executor : channel.export(ProcessExecutor.class, executor);
+		}
+	}
+
+	/**
+	 * Actual executor running processes in the current JVM
+	 */
+	static final class Local implements ProcessExecutor {
+		private static final int CHUNK_SIZE = 8192;
+
+		@Override
+		public Result execute(String workDir, Map<String, String> env, String[] args, OutputStream out) throws IOException, InterruptedException {
+			// marks the process and all its descendants, so they can be found and killed
+			EnvVars cookie = EnvVars.createCookie();
+			ProcessBuilder builder = new ProcessBuilder(args).directory(new File(workDir)).redirectErrorStream(true);
+			builder.environment().putAll(env);
+			builder.environment().putAll(cookie);
+
+			long start = System.currentTimeMillis();
+			Process process = builder.start();
+			try {
+				process.getOutputStream().close();
+				pump(process.getInputStream(), out);
+				int exitCode = process.waitFor();
+				return new Result(exitCode, System.currentTimeMillis() - start);
+			} catch (InterruptedException e) {
+				killAll(process, cookie);
+				throw e;
+			} catch (IOException e) {
+				killAll(process, cookie);
+				throw e;
+			} finally {
+				process.destroy();
+			}
+		}
+
+		/**
+		 * Kills the process with all its descendants, like {@link hudson.Launcher} does on abort
+		 */
+		private void killAll(Process process, EnvVars cookie) {
+			// the kill itself waits for the processes, so it must not see the pending interruption
+			boolean interrupted = Thread.interrupted();
+			try {
+				ProcessTree.get().killAll(process, cookie);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Copies the output in chunks of whatever is available, so a remote stream gets one call per chunk rather than per line
+		 */
+		private void pump(InputStream in, OutputStream out) throws IOException, InterruptedException {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			try {
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+				out.flush();
+			}
+		}
+	}
+}
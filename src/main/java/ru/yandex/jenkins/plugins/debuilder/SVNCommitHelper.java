@@ -7,6 +7,11 @@ import hudson.scm.SubversionSCM;
 import java.io.File;
 import java.io.Serializable;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import jedi.functional.FunctionalPrimitives;
 
 import org.tmatesoft.svn.core.SVNCommitInfo;
 import org.tmatesoft.svn.core.SVNDepth;
@@ -14,39 +19,130 @@ import org.tmatesoft.svn.core.SVNException;
 import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
 import org.tmatesoft.svn.core.wc.SVNCommitPacket;
 
-public class SVNCommitHelper implements Serializable , Callable<String, DebianizingException>{
+/**
+ * Commits changelogs of all the modules at once, in as few revisions as possible
+ * (one per repository the modules are checked out from).
+ * Only the files the plugin changes are collected, each at {@link SVNDepth#EMPTY}, so the rest of the working copy is not crawled.
+ */
+public class SVNCommitHelper implements Serializable , Callable<SVNCommitHelper.Result, DebianizingException>{
 	private static final long serialVersionUID = 1L;
 
 	private final ISVNAuthenticationProvider provider;
-	private final String path;
+	private final ArrayList<String> modules;
+	private final ArrayList<String> versionFiles;
 	private final String commitMessage;
 
-	public SVNCommitHelper(ISVNAuthenticationProvider provider, String path, String commitMessage) {
+	/**
+	 * @param provider
+	 *            The authentication provider
+	 * @param modules
+	 *            Remote paths of the modules to commit changelogs of
+	 * @param versionFiles
+	 *            Paths of other files to commit, relative to each module; those missing in a module are skipped
+	 * @param commitMessage
+	 *            The commit message
+	 */
+	public SVNCommitHelper(ISVNAuthenticationProvider provider, Collection<String> modules, Collection<String> versionFiles, String commitMessage) {
 		this.provider = provider;
-		this.path = path;
+		this.modules = new ArrayList<String>(modules);
+		this.versionFiles = new ArrayList<String>(versionFiles);
 		this.commitMessage = commitMessage;
 	}
 
 	@Override
-	public String call() throws DebianizingException {
+	public Result call() throws DebianizingException {
+		List<File> targets = new ArrayList<File>();
+		for (String module: modules) {
+			targets.add(new File(new File(module, "debian"), "changelog"));
+			for (String versionFile: versionFiles) {
+				File file = new File(module, versionFile);
+				if (file.isFile()) {
+					targets.add(file);
+				}
+			}
+		}
+
 		SvnClientManager clientManager = SubversionSCM.createClientManager(provider);
 		try {
-			SVNCommitPacket changeset = clientManager.getCommitClient().doCollectCommitItems(new File[] {new File(path)}, false, true, SVNDepth.INFINITY, null);
-			if (changeset != SVNCommitPacket.EMPTY) {
-				SVNCommitInfo commitInfo = clientManager.getCommitClient().doCommit(changeset, false, commitMessage);
+			long start = System.currentTimeMillis();
+			SVNCommitPacket[] changesets = clientManager.getCommitClient().doCollectCommitItems(targets.toArray(new File[targets.size()]), false, true, SVNDepth.EMPTY, true, null);
+			long collectMillis = System.currentTimeMillis() - start;
 
-				if (commitInfo.getErrorMessage() != null) {
-					throw new DebianizingException(MessageFormat.format("Error while commiting <{0}>: {1}", path, commitInfo.getErrorMessage().toString()));
-				} else {
-					return Long.toString(commitInfo.getNewRevision());
+			List<SVNCommitPacket> nonEmpty = new ArrayList<SVNCommitPacket>();
+			int items = 0;
+			for (SVNCommitPacket changeset: changesets) {
+				if (changeset != null && changeset != SVNCommitPacket.EMPTY && changeset.getCommitItems().length > 0) {
+					nonEmpty.add(changeset);
+					items += changeset.getCommitItems().length;
 				}
-			} else {
+			}
+
+			if (nonEmpty.isEmpty()) {
 				throw new DebianizingException("There was nothing to commit.");
 			}
+
+			SVNCommitInfo[] commitInfos = clientManager.getCommitClient().doCommit(nonEmpty.toArray(new SVNCommitPacket[nonEmpty.size()]), false, false, commitMessage, null);
+
+			List<String> revisions = new ArrayList<String>();
+			for (SVNCommitInfo commitInfo: commitInfos) {
+				if (commitInfo.getErrorMessage() != null) {
+					throw new DebianizingException(MessageFormat.format("Error while commiting <{0}>: {1}", FunctionalPrimitives.join(modules, ", "), commitInfo.getErrorMessage().toString()));
+				}
+				revisions.add(Long.toString(commitInfo.getNewRevision()));
+			}
+
+			return new Result(FunctionalPrimitives.join(revisions, ", "), targets.size(), items, collectMillis);
 		} catch (SVNException e) {
 			throw new DebianizingException("SVNException: " + e.getMessage(), e);
 		} finally {
 			clientManager.dispose();
 		}
 	}
+
+	/**
+	 * Pojo to pass the outcome of the commit back to the controller
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String revisions;
+		private final int targets;
+		private final int items;
+		private final long collectMillis;
+
+		public Result(String revisions, int targets, int items, long collectMillis) {
+			this.revisions = revisions;
+			this.targets = targets;
+			this.items = items;
+			this.collectMillis = collectMillis;
+		}
+
+		/**
+		 * @return committed revisions, comma-separated
+		 */
+		public String getRevisions() {
+			return revisions;
+		}
+
+		/**
+		 * @return number of files checked for changes
+		 */
+		public int getTargets() {
+			return targets;
+		}
+
+		/**
+		 * @return number of changed files committed
+		 */
+		public int getItems() {
+			return items;
+		}
+
+		/**
+		 * @return time spent collecting commit items
+		 */
+		public long getCollectMillis() {
+			return collectMillis;
+		}
+	}
 }
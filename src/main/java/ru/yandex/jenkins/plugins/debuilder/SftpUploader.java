@@ -0,0 +1,453 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.KnownHosts;
+import com.trilead.ssh2.SFTPException;
+import com.trilead.ssh2.SFTPv3Client;
+import com.trilead.ssh2.SFTPv3FileAttributes;
+import com.trilead.ssh2.SFTPv3FileHandle;
+import com.trilead.ssh2.ServerHostKeyVerifier;
+import com.trilead.ssh2.sftp.ErrorCodes;
+
+/**
+ * Uploads packages to the incoming directory of a {@link DebianPackageRepo} over SFTP, without dupload.
+ * One SSH connection is used for everything, with a separate SFTP channel per parallel upload.
+ * Files are written under a temporary name and renamed when complete, so an interrupted upload is resumed from where it stopped.
+ * The .changes files are uploaded last, after all the files they list.
+ * Files recorded in the {@link UploadIndex} of the repository are skipped if they are still waiting in the incoming directory
+ * or, when the pool of the repository is configured, if the archive has already put them to the pool,
+ * since being uploaded once does not mean the archive has accepted them.
+ * Uploads with debrelease do not use the index and always send every file.
+ */
+public class SftpUploader {
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final String PART_SUFFIX = ".part";
+	private static final int SSH_PORT = 22;
+
+	private final DebianPackageRepo repo;
+	private final int port;
+	private final File key;
+	private final int parallelism;
+	private final Runner runner;
+
+	private final BlockingQueue<SFTPv3Client> clients = new LinkedBlockingQueue<SFTPv3Client>();
+	private final List<SFTPv3Client> allClients = new ArrayList<SFTPv3Client>();
+	private final UploadIndex index;
+	private final Map<String, String> verified = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> sources = new ConcurrentHashMap<String, String>();
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private Connection connection;
+
+	/**
+	 * @param repo
+	 *            The repository to upload to
+	 * @param key
+	 *            Private key to log in with
+	 * @param parallelism
+	 *            Maximum number of files uploaded at once
+	 * @param runner
+	 *            The runner to report progress with
+	 * @param index
+	 *            Files already uploaded to the repository
+	 */
+	public SftpUploader(DebianPackageRepo repo, File key, int parallelism, Runner runner, UploadIndex index) {
+		this(repo, SSH_PORT, key, parallelism, runner, index);
+	}
+
+	SftpUploader(DebianPackageRepo repo, int port, File key, int parallelism, Runner runner, UploadIndex index) {
+		this.repo = repo;
+		this.port = port;
+		this.key = key;
+		this.parallelism = Math.max(1, parallelism);
+		this.runner = runner;
+		this.index = index;
+	}
+
+	/**
+	 * Connects to the repository host, checking its key against the one configured for the repository
+	 * or, if there is none, against known_hosts of the controller user. Unknown hosts are refused.
+	 */
+	public void connect() throws IOException {
+		connection = new Connection(repo.getFqdn(), port);
+
+		final KnownHosts knownHosts = loadKnownHosts();
+		connection.connect(new ServerHostKeyVerifier() {
+			@Override
+			public boolean verifyServerHostKey(String hostname, int port, String serverHostKeyAlgorithm, byte[] serverHostKey) throws Exception {
+				int verdict = knownHosts.verifyHostkey(hostname, serverHostKeyAlgorithm, serverHostKey);
+				if (verdict == KnownHosts.HOSTKEY_HAS_CHANGED) {
+					runner.announce("The {0} key of {1} does not match the known one, refusing to connect", serverHostKeyAlgorithm, hostname);
+				} else if (verdict != KnownHosts.HOSTKEY_IS_OK) {
+					runner.announce("The {0} key of {1} is not known, configure the host key of repository {2} or add it to known_hosts of the controller",
+							serverHostKeyAlgorithm, hostname, repo.getName());
+				}
+				return verdict == KnownHosts.HOSTKEY_IS_OK;
+			}
+		});
+
+		if (!connection.authenticateWithPublicKey(repo.getLogin(), key, null)) {
+			close();
+			throw new IOException(MessageFormat.format("Failed to log in to {0} as {1}", repo.getFqdn(), repo.getLogin()));
+		}
+	}
+
+	/**
+	 * @return the configured host key of the repository, or known_hosts of the controller user if there is no such key
+	 * @throws IOException
+	 *             if there is neither
+	 */
+	private KnownHosts loadKnownHosts() throws IOException {
+		String hostKey = repo.getHostKey();
+		if (hostKey != null && hostKey.trim().length() > 0) {
+			return new KnownHosts((repo.getFqdn() + " " + hostKey.trim()).toCharArray());
+		}
+
+		File knownHostsFile = new File(System.getProperty("user.home"), ".ssh/known_hosts");
+		if (!knownHostsFile.isFile()) {
+			throw new IOException(MessageFormat.format("Can''t verify the key of {0}: no host key is configured for repository {1} and there is no {2}",
+					repo.getFqdn(), repo.getName(), knownHostsFile));
+		}
+		return new KnownHosts(knownHostsFile);
+	}
+
+	/**
+	 * Uploads the given .changes files with all the files they list
+	 *
+	 * @param directory
+	 *            Directory with the files to upload
+	 * @param changes
+	 *            The uploads, their files are uploaded in parallel, then the .changes files themselves
+	 * @param checksums
+	 *            Known SHA-256 and MD5 of the files, to avoid reading them again; files not in it are hashed
+	 * @return number of bytes sent
+	 */
+	public long upload(final File directory, List<ChangesFile> changes, Map<String, ArtifactManifest.Entry> checksums) throws IOException, InterruptedException, DebianizingException {
+		for (ChangesFile changesFile: changes) {
+			for (ChangesFile.Entry entry: changesFile.getEntries()) {
+				verified.put(entry.getName(), verify(new File(directory, entry.getName()), entry, checksums.get(entry.getName())));
+				if (changesFile.getSource() != null) {
+					sources.put(entry.getName(), changesFile.getSource());
+				}
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			// uploads of several modules may share files, like an orig tarball
+			Set<String> names = new LinkedHashSet<String>();
+			for (ChangesFile changesFile: changes) {
+				for (ChangesFile.Entry entry: changesFile.getEntries()) {
+					names.add(entry.getName());
+				}
+			}
+
+			List<Future<Void>> uploads = new ArrayList<Future<Void>>();
+			for (final String name: names) {
+				uploads.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						upload(new File(directory, name));
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> upload: uploads) {
+				try {
+					upload.get();
+				} catch (ExecutionException e) {
+					throw new IOException("Upload failed: " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (ChangesFile changesFile: changes) {
+			upload(new File(directory, changesFile.getName()));
+		}
+
+		return uploaded.get();
+	}
+
+	/**
+	 * @return bytes of the files that were not sent since the repository already had them
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Checks the local file against the .changes file before it is sent anywhere
+	 *
+	 * @return SHA-256 of the file
+	 */
+	private String verify(File file, ChangesFile.Entry entry, ArtifactManifest.Entry known) throws IOException, DebianizingException {
+		if (!file.isFile()) {
+			throw new DebianizingException(MessageFormat.format("File {0} listed in .changes was not archived", entry.getName()));
+		}
+		if (file.length() != entry.getSize()) {
+			throw new DebianizingException(MessageFormat.format("Size of {0} is {1}, but .changes says {2}", entry.getName(), file.length(), entry.getSize()));
+		}
+
+		String sha256 = known == null ? null : known.getSha256();
+		String md5 = known == null ? null : known.getMd5();
+		if (sha256 == null || md5 == null) {
+			String[] digests = digest(file);
+			sha256 = digests[0];
+			md5 = digests[1];
+		}
+
+		if (entry.getSha256() != null && !entry.getSha256().equalsIgnoreCase(sha256)) {
+			throw new DebianizingException(MessageFormat.format("SHA-256 of {0} does not match .changes", entry.getName()));
+		}
+		if (entry.getMd5() != null && !entry.getMd5().equalsIgnoreCase(md5)) {
+			throw new DebianizingException(MessageFormat.format("MD5 of {0} does not match .changes", entry.getName()));
+		}
+
+		return sha256;
+	}
+
+	/**
+	 * @return true if this very file is still in incoming or was accepted to the pool, so it need not be sent
+	 */
+	private boolean isAlreadyUploaded(SFTPv3Client client, File file, String target) throws IOException {
+		String sha256 = verified.get(file.getName());
+		if (sha256 == null || !index.contains(file.getName(), sha256, file.length())) {
+			return false;
+		}
+
+		// the index says what was sent, not what the archive took, so the file must also be found on the host
+		if (hasSize(client, target, file.length())) {
+			return true;
+		}
+
+		String pool = getPoolPath(file.getName());
+		return pool != null && hasSize(client, pool, file.length());
+	}
+
+	/**
+	 * @return path of the file in the pool of the repository, like <b>pool/main/libf/libfoo/libfoo_1.0.orig.tar.gz</b>,
+	 *         or null if the pool or the source package is not known
+	 */
+	private String getPoolPath(String name) {
+		String pool = repo.getPool();
+		String source = sources.get(name);
+		if (pool == null || pool.trim().length() == 0 || source == null) {
+			return null;
+		}
+
+		String prefix = source.startsWith("lib") && source.length() > 3 ? source.substring(0, 4) : source.substring(0, 1);
+		return pool.trim() + "/" + prefix + "/" + source + "/" + name;
+	}
+
+	private static boolean hasSize(SFTPv3Client client, String path, long size) throws IOException {
+		SFTPv3FileAttributes attributes = stat(client, path);
+		return attributes != null && attributes.size != null && attributes.size == size;
+	}
+
+	private void upload(File file) throws IOException, InterruptedException {
+		SFTPv3Client client = takeClient();
+		try {
+			String target = repo.getIncoming() + "/" + file.getName();
+			String part = target + PART_SUFFIX;
+			long size = file.length();
+			long start = System.currentTimeMillis();
+
+			if (isAlreadyUploaded(client, file, target)) {
+				skipped.addAndGet(size);
+				runner.announce("{0} is already in {1}, skipping {2} bytes", file.getName(), repo.getName(), String.valueOf(size));
+				return;
+			}
+
+			long offset = 0;
+			SFTPv3FileHandle handle;
+			SFTPv3FileAttributes partAttributes = stat(client, part);
+			if (partAttributes != null && partAttributes.size != null && partAttributes.size <= size && tailMatches(client, part, file, partAttributes.size)) {
+				offset = partAttributes.size;
+				handle = client.openFileRW(part);
+				runner.announce("Resuming upload of {0} from byte {1}", file.getName(), String.valueOf(offset));
+			} else {
+				// a leftover of some other upload may be longer than this file
+				handle = client.createFileTruncate(part);
+			}
+
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				in.seek(offset);
+				byte[] buffer = new byte[CHUNK_SIZE];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					client.write(handle, offset, buffer, 0, read);
+					offset += read;
+					uploaded.addAndGet(read);
+				}
+			} finally {
+				in.close();
+				client.closeFile(handle);
+			}
+
+			SFTPv3FileAttributes written = stat(client, part);
+			if (written == null || written.size == null || written.size != size) {
+				throw new IOException(MessageFormat.format("Uploaded {0} has wrong size", file.getName()));
+			}
+
+			if (stat(client, target) != null) {
+				client.rm(target);
+			}
+			client.mv(part, target);
+
+			String sha256 = verified.get(file.getName());
+			if (sha256 != null) {
+				index.add(file.getName(), sha256, size);
+			}
+
+			runner.announce("Uploaded {0} to {1}:{2} in {3} ms", file.getName(), repo.getFqdn(), repo.getIncoming(), String.valueOf(System.currentTimeMillis() - start));
+		} finally {
+			clients.put(client);
+		}
+	}
+
+	/**
+	 * Compares the end of a partial upload with the local file, so a leftover of some other upload is not continued
+	 */
+	private boolean tailMatches(SFTPv3Client client, String part, File file, long partSize) throws IOException {
+		int length = (int) Math.min(CHUNK_SIZE, partSize);
+		if (length == 0) {
+			return true;
+		}
+
+		byte[] remote = new byte[length];
+		SFTPv3FileHandle handle = client.openFileRO(part);
+		try {
+			int total = 0;
+			while (total < length) {
+				int read = client.read(handle, partSize - length + total, remote, total, length - total);
+				if (read <= 0) {
+					return false;
+				}
+				total += read;
+			}
+		} finally {
+			client.closeFile(handle);
+		}
+
+		byte[] local = new byte[length];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(partSize - length);
+			in.readFully(local);
+		} finally {
+			in.close();
+		}
+
+		return Arrays.equals(local, remote);
+	}
+
+	/**
+	 * @return attributes of the remote file, or null if there is no such file
+	 */
+	private static SFTPv3FileAttributes stat(SFTPv3Client client, String path) throws IOException {
+		try {
+			return client.stat(path);
+		} catch (SFTPException e) {
+			if (e.getServerErrorCode() == ErrorCodes.SSH_FX_NO_SUCH_FILE) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return an idle SFTP channel, opening a new one while there are less than the parallelism limit
+	 */
+	private SFTPv3Client takeClient() throws IOException, InterruptedException {
+		SFTPv3Client client = clients.poll();
+		if (client != null) {
+			return client;
+		}
+
+		synchronized (allClients) {
+			if (allClients.size() < parallelism) {
+				client = new SFTPv3Client(connection);
+				allClients.add(client);
+				return client;
+			}
+		}
+
+		return clients.take();
+	}
+
+	public void close() {
+		synchronized (allClients) {
+			for (SFTPv3Client client: allClients) {
+				client.close();
+			}
+			allClients.clear();
+		}
+		clients.clear();
+
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+	}
+
+	/**
+	 * @return hex SHA-256 and MD5 of the file
+	 */
+	private static String[] digest(File file) throws IOException {
+		MessageDigest sha256;
+		MessageDigest md5;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest is not supported by this JVM", e);
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				sha256.update(buffer, 0, read);
+				md5.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		return new String[] {DebUtils.toHex(sha256.digest()), DebUtils.toHex(md5.digest())};
+	}
+}
@@ -0,0 +1,429 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.tmatesoft.svn.core.SVNException;
+
+import ru.yandex.jenkins.plugins.debuilder.SvnLogFetcher.EntryHandler;
+
+/**
+ * Controller-side cache of SVN log entries.
+ * For every URL it keeps a single contiguous revision range on disk, in a compact binary form.
+ * When a range is requested, only the revisions not covered by the cached range are fetched,
+ * and the cached range is extended with them.
+ * Entries are streamed between the server, the cache files and the handler, so at most one entry is held in memory.
+ * Total size of the cache is limited, least recently used URLs are evicted first.
+ */
+public class SvnLogCache {
+	private static final Logger LOGGER = Logger.getLogger(SvnLogCache.class.getName());
+	private static final int MAGIC = 0x44504231;
+	private static final int FORMAT = 2;
+	private static final String CACHE_DIR = "debian-package-builder/svn-log-cache";
+	private static final String SUFFIX = ".log";
+	// authors and messages longer than that can only come from a corrupt file
+	private static final int MAX_STRING_LENGTH = 1 << 24;
+
+	// striped, so that the number of locks does not grow with the number of URLs
+	private static final Object[] LOCKS = new Object[64];
+	private static final Object EVICTION_LOCK = new Object();
+
+	static {
+		for (int i = 0; i < LOCKS.length; i++) {
+			LOCKS[i] = new Object();
+		}
+	}
+
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * @param maxSizeMegabytes
+	 *            Limit of the total cache size on disk
+	 */
+	public SvnLogCache(int maxSizeMegabytes) {
+		this(new File(Jenkins.getInstance().getRootDir(), CACHE_DIR), maxSizeMegabytes * 1024L * 1024L);
+	}
+
+	SvnLogCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Feeds log entries of given range to the handler, fetching only those which are not cached yet.
+	 * Entries fetched from the server are always fetched with details, since they are stored in the cache,
+	 * but are still fed to the handler one page at a time.
+	 *
+	 * @param fetcher
+	 *            The fetcher for the URL
+	 * @param startRevision
+	 *            First revision of the range
+	 * @param endRevision
+	 *            Last revision of the range
+	 * @param handler
+	 *            The handler to feed entries to
+	 * @return number of revisions fetched from the server
+	 */
+	public long replay(SvnLogFetcher fetcher, long startRevision, long endRevision, EntryHandler handler) throws SVNException, IOException {
+		String url = fetcher.getUrl().toString();
+		String key = DebUtils.sha256(url);
+		File file = new File(directory, key + SUFFIX);
+		long fetched;
+
+		synchronized (lockOf(file)) {
+			CacheReader cached = open(file, url);
+			try {
+				if (cached != null && cached.from <= endRevision + 1 && cached.to >= startRevision - 1) {
+					if (startRevision >= cached.from && endRevision <= cached.to) {
+						cached.replay(startRevision, endRevision, handler);
+						fetched = 0;
+					} else {
+						fetched = Math.max(0, cached.from - startRevision) + Math.max(0, endRevision - cached.to);
+						CacheWriter writer = new CacheWriter(file, url, Math.min(startRevision, cached.from), Math.max(endRevision, cached.to));
+						try {
+							if (startRevision < cached.from) {
+								fetcher.fetch(startRevision, cached.from - 1, writer.forwarding(handler, startRevision, endRevision));
+							}
+							cached.copy(writer, handler, startRevision, endRevision);
+							if (endRevision > cached.to) {
+								fetcher.fetch(cached.to + 1, endRevision, writer.forwarding(handler, startRevision, endRevision));
+							}
+							cached.close();
+							cached = null;
+							writer.commit();
+						} finally {
+							writer.abort();
+						}
+					}
+				} else {
+					if (cached != null) {
+						cached.close();
+						cached = null;
+					}
+					fetched = endRevision - startRevision + 1;
+					CacheWriter writer = new CacheWriter(file, url, startRevision, endRevision);
+					try {
+						fetcher.fetch(startRevision, endRevision, writer.forwarding(handler, startRevision, endRevision));
+						writer.commit();
+					} finally {
+						writer.abort();
+					}
+				}
+			} catch (CacheWriteException e) {
+				throw e.getCause();
+			} finally {
+				if (cached != null) {
+					cached.close();
+				}
+			}
+			file.setLastModified(System.currentTimeMillis());
+		}
+
+		evict();
+
+		return fetched;
+	}
+
+	private static Object lockOf(File file) {
+		return LOCKS[(file.getName().hashCode() & 0x7fffffff) % LOCKS.length];
+	}
+
+	/**
+	 * @return reader positioned at the first entry, or null if the file is missing or is not a cache of the URL
+	 */
+	private CacheReader open(File file, String url) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			boolean ok = false;
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT || !url.equals(readString(in))) {
+					return null;
+				}
+				CacheReader reader = new CacheReader(file, in, in.readLong(), in.readLong());
+				ok = true;
+				return reader;
+			} finally {
+				if (!ok) {
+					in.close();
+				}
+			}
+		} catch (EOFException e) {
+			LOGGER.log(Level.WARNING, "Truncated SVN log cache file " + file + ", ignoring it");
+			return null;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read SVN log cache file " + file + ", ignoring it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes least recently used files until the cache fits into its size limit
+	 */
+	private void evict() {
+		synchronized (EVICTION_LOCK) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+
+			List<File> logs = new ArrayList<File>();
+			long total = 0;
+			for (File file: files) {
+				if (file.getName().endsWith(SUFFIX)) {
+					logs.add(file);
+					total += file.length();
+				}
+			}
+
+			if (total <= maxSize) {
+				return;
+			}
+
+			Collections.sort(logs, new Comparator<File>() {
+				@Override
+				public int compare(File o1, File o2) {
+					return Long.valueOf(o1.lastModified()).compareTo(o2.lastModified());
+				}
+			});
+
+			for (File file: logs) {
+				if (total <= maxSize) {
+					break;
+				}
+				synchronized (lockOf(file)) {
+					long length = file.length();
+					if (file.delete()) {
+						total -= length;
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readLength(in);
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void skipString(DataInputStream in) throws IOException {
+		int length = readLength(in);
+		if (length > 0 && in.skipBytes(length) != length) {
+			throw new EOFException();
+		}
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < -1 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Corrupt string length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Reads entries of a cache file sequentially; entries are ordered by revision and end with a -1 revision
+	 */
+	private static final class CacheReader {
+		private final File file;
+		private final DataInputStream in;
+		private final long from;
+		private final long to;
+
+		public CacheReader(File file, DataInputStream in, long from, long to) {
+			this.file = file;
+			this.in = in;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Feeds entries of the range to the handler, skipping the rest without decoding them
+		 */
+		public void replay(long startRevision, long endRevision, EntryHandler handler) throws IOException {
+			try {
+				long revision;
+				while ((revision = in.readLong()) >= 0 && revision <= endRevision) {
+					if (revision >= startRevision && handler.wantsDetails()) {
+						handler.handle(revision, readString(in), readString(in));
+					} else {
+						skipString(in);
+						skipString(in);
+						if (revision >= startRevision) {
+							handler.handle(revision, null, null);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw corrupt(e);
+			}
+		}
+
+		/**
+		 * Copies all the entries to the writer, feeding those of the range to the handler
+		 */
+		public void copy(CacheWriter writer, EntryHandler handler, long startRevision, long endRevision) throws IOException {
+			try {
+				long revision;
+				while ((revision = in.readLong()) >= 0) {
+					String author = readString(in);
+					String message = readString(in);
+					writer.write(revision, author, message);
+					if (revision >= startRevision && revision <= endRevision) {
+						handler.handle(revision, handler.wantsDetails() ? author : null, handler.wantsDetails() ? message : null);
+					}
+				}
+			} catch (IOException e) {
+				throw corrupt(e);
+			}
+		}
+
+		/**
+		 * Entries already fed to the handler can not be taken back, so a corrupt file fails the replay and is dropped
+		 */
+		private IOException corrupt(IOException e) {
+			close();
+			if (!file.delete()) {
+				LOGGER.log(Level.WARNING, "Failed to delete corrupt SVN log cache file " + file);
+			}
+			IOException result = new IOException("Corrupt SVN log cache file " + file + ", it was deleted: " + e.getMessage());
+			result.initCause(e);
+			return result;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a new cache file next to the old one and replaces it on commit
+	 */
+	private final class CacheWriter {
+		private final File file;
+		private final File temp;
+		private final DataOutputStream out;
+
+		public CacheWriter(File file, String url, long from, long to) throws IOException {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Failed to create " + directory);
+			}
+
+			this.file = file;
+			this.temp = new File(directory, file.getName() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			writeString(out, url);
+			out.writeLong(from);
+			out.writeLong(to);
+		}
+
+		public void write(long revision, String author, String message) throws IOException {
+			out.writeLong(revision);
+			writeString(out, author);
+			writeString(out, message);
+		}
+
+		/**
+		 * @return handler writing fetched entries to the file and feeding those of the range to the given handler
+		 */
+		public EntryHandler forwarding(final EntryHandler handler, final long startRevision, final long endRevision) {
+			return new EntryHandler() {
+				@Override
+				public boolean wantsDetails() {
+					return true;
+				}
+
+				@Override
+				public void handle(long revision, String author, String message) {
+					try {
+						write(revision, author, message);
+					} catch (IOException e) {
+						throw new CacheWriteException(e);
+					}
+					if (revision >= startRevision && revision <= endRevision) {
+						boolean details = handler.wantsDetails();
+						handler.handle(revision, details ? author : null, details ? message : null);
+					}
+				}
+			};
+		}
+
+		public void commit() throws IOException {
+			out.writeLong(-1);
+			out.close();
+			if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+				throw new IOException("Failed to replace " + file);
+			}
+		}
+
+		/**
+		 * Drops the new file, unless it was committed already
+		 */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to close " + temp, e);
+			}
+			if (temp.exists() && !temp.delete()) {
+				LOGGER.log(Level.WARNING, "Failed to delete " + temp);
+			}
+		}
+	}
+
+	/**
+	 * Carries a failure to write the cache out of {@link EntryHandler#handle(long, String, String)}
+	 */
+	private static final class CacheWriteException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public CacheWriteException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.scm.SvnClientManager;
+
+import org.tmatesoft.svn.core.ISVNLogEntryHandler;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNLogEntry;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.wc.SVNRevision;
+
+/**
+ * Fetches SVN log of a URL page by page, so at most a page of entries is in flight at once.
+ */
+public class SvnLogFetcher {
+	/**
+	 * Receives log entries in revision order
+	 */
+	public interface EntryHandler {
+		/**
+		 * @return false if the handler only counts entries, so author and message need not be fetched
+		 */
+		boolean wantsDetails();
+
+		/**
+		 * @param revision
+		 *            The revision
+		 * @param author
+		 *            The author, null if details were not requested
+		 * @param message
+		 *            The message, null if details were not requested
+		 */
+		void handle(long revision, String author, String message);
+	}
+
+	private final SvnClientManager manager;
+	private final SVNURL url;
+	private final int pageSize;
+
+	public SvnLogFetcher(SvnClientManager manager, SVNURL url, int pageSize) {
+		this.manager = manager;
+		this.url = url;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Fetches log entries for revisions from <b>startRevision</b> to <b>endRevision</b>, both inclusive
+	 */
+	public void fetch(long startRevision, long endRevision, final EntryHandler handler) throws SVNException {
+		while (startRevision <= endRevision) {
+			final long[] lastRevision = new long[] {-1};
+			final int[] count = new int[] {0};
+			final boolean details = handler.wantsDetails();
+
+			ISVNLogEntryHandler logHandler = new ISVNLogEntryHandler() {
+				@Override
+				public void handleLogEntry(SVNLogEntry logEntry) throws SVNException {
+					count[0]++;
+					lastRevision[0] = logEntry.getRevision();
+					if (details) {
+						handler.handle(logEntry.getRevision(), logEntry.getAuthor(), logEntry.getMessage());
+					} else {
+						handler.handle(logEntry.getRevision(), null, null);
+					}
+				}
+			};
+
+			// when only counting, ask for no revision properties at all to keep the response small
+			String[] revisionProperties = details ? null : new String[0];
+			manager.getLogClient().doLog(url, null, SVNRevision.UNDEFINED, SVNRevision.create(startRevision), SVNRevision.create(endRevision), false, false, false, pageSize, revisionProperties, logHandler);
+
+			if (count[0] < pageSize || lastRevision[0] < 0) {
+				break;
+			}
+			startRevision = lastRevision[0] + 1;
+		}
+	}
+
+	public SVNURL getUrl() {
+		return url;
+	}
+}
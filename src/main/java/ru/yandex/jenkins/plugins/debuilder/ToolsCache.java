@@ -0,0 +1,159 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import hudson.FilePath;
+import hudson.remoting.Callable;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jedi.functional.FunctionalPrimitives;
+import ru.yandex.jenkins.plugins.debuilder.DebUtils.Runner;
+
+import com.google.common.io.CharStreams;
+
+/**
+ * Installs the tools needed by the build through apt at most once per TTL per node.
+ * The set of installed packages and their versions is remembered in a {@link NodeStamp},
+ * which is trusted only while dpkg still reports the very same packages installed.
+ */
+public class ToolsCache {
+	private final Runner runner;
+	private final FilePath nodeRoot;
+	private final long ttl;
+
+	/**
+	 * @param runner
+	 *            The runner of current build
+	 * @param nodeRoot
+	 *            Root of the node the build runs on
+	 * @param ttlHours
+	 *            How long the installed tools are trusted, in hours; non-positive value disables caching
+	 */
+	public ToolsCache(Runner runner, FilePath nodeRoot, int ttlHours) {
+		this.runner = runner;
+		this.nodeRoot = nodeRoot;
+		this.ttl = ttlHours * 3600L * 1000L;
+	}
+
+	/**
+	 * Makes sure given packages are installed, running <b>apt-get install</b> only if the node stamp is missing, expired
+	 * or does not match the packages dpkg reports installed
+	 *
+	 * @param name
+	 *            Name of the tools set, used for the stamp
+	 * @param update
+	 *            Should <b>apt-get update</b> be called before install
+	 * @param packages
+	 *            The packages to install
+	 */
+	public void ensureInstalled(String name, boolean update, String... packages) throws InterruptedException, DebianizingException {
+		String packageList = FunctionalPrimitives.join(Arrays.asList(packages), " ");
+		NodeStamp stamp = new NodeStamp(nodeRoot, "tools-" + name);
+
+		long start = System.currentTimeMillis();
+		if (ttl > 0) {
+			try {
+				String installed = runner.getChannel().call(new VersionQuery(packages));
+				if (stamp.isFresh(getKey(packageList, installed), ttl)) {
+					runner.announce("Tools <{0}> are already installed on this node, skipping apt (checked in {1} ms)", packageList, System.currentTimeMillis() - start);
+					Metrics.get().cache("tools", true);
+					return;
+				}
+			} catch (IOException e) {
+				runner.announce("Failed to check tools stamp, will install tools: {0}", e.getMessage());
+			}
+		}
+
+		Metrics.get().cache("tools", false);
+		NodeLock lock = NodeLock.acquire(runner.getNodeName(), NodeLock.DPKG);
+		try {
+			if (update) {
+				runner.runProcess("sudo", "apt-get", "update");
+			}
+			List<String> command = new ArrayList<String>(Arrays.asList("sudo", "apt-get", "install"));
+			command.addAll(Arrays.asList(packages));
+			runner.runProcess(command.toArray(new String[command.size()]));
+		} finally {
+			lock.release();
+		}
+
+		String installed;
+		try {
+			installed = runner.getChannel().call(new VersionQuery(packages));
+		} catch (IOException e) {
+			throw new DebianizingException("Failed to query installed tools: " + e.getMessage(), e);
+		}
+
+		List<String> missing = getMissing(packages, installed);
+		if (!missing.isEmpty()) {
+			throw new DebianizingException("Tools are not installed after apt-get install: " + FunctionalPrimitives.join(missing, " "));
+		}
+
+		try {
+			stamp.record(getKey(packageList, installed), installed);
+		} catch (IOException e) {
+			runner.announce("Failed to record tools stamp: {0}", e.getMessage());
+		}
+
+		runner.announce("Tools <{0}> installed in {1} ms", packageList, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return stamp key, which changes whenever any of the packages is removed, upgraded or downgraded
+	 */
+	private static String getKey(String packageList, String installed) {
+		return packageList + " " + DebUtils.sha256(installed);
+	}
+
+	/**
+	 * @param installed
+	 *            Output of {@link VersionQuery}
+	 * @return the packages dpkg does not report as installed
+	 */
+	static List<String> getMissing(String[] packages, String installed) {
+		List<String> missing = new ArrayList<String>();
+		for (String name: packages) {
+			if (!installed.contains("\n" + name + " install ok installed ") && !installed.startsWith(name + " install ok installed ")) {
+				missing.add(name);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Asks dpkg for the status and installed versions of given packages on the remote side, one <b>package status version</b> line per package;
+	 * packages dpkg knows nothing about are reported by error messages in the output
+	 */
+	private static final class VersionQuery implements Callable<String, IOException> {
+		private static final long serialVersionUID = 1L;
+		private final String[] packages;
+
+		public VersionQuery(String[] packages) {
+			this.packages = packages;
+		}
+
+		@Override
+		public String call() throws IOException {
+			List<String> command = new ArrayList<String>();
+			command.add("dpkg-query");
+			command.add("-W");
+			command.add("-f=${Package} ${Status} ${Version}\\n");
+			command.addAll(Arrays.asList(packages));
+
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			try {
+				process.getOutputStream().close();
+				String output = CharStreams.toString(new InputStreamReader(process.getInputStream()));
+				process.waitFor();
+				return output;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while querying package versions");
+			} finally {
+				process.destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Controller-side append-only record of the files uploaded to a repository, with their SHA-256 and size,
+ * so that {@link SftpUploader} can tell which files the repository already has.
+ * Later records of the same file name override earlier ones.
+ * Only the latest {@link #MAX_ENTRIES} files are kept, the file is rewritten without the stale records when it is loaded.
+ */
+public class UploadIndex {
+	private static final Logger LOGGER = Logger.getLogger(UploadIndex.class.getName());
+	private static final String INDEX_DIR = "debian-package-builder/upload-index";
+	private static final int MAX_ENTRIES = 4096;
+
+	private static final Object LOCK = new Object();
+
+	private final File file;
+	private final Map<String, String> uploaded = new LinkedHashMap<String, String>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Loads the index of the repository
+	 */
+	public UploadIndex(DebianPackageRepo repo) {
+		this(new File(new File(Jenkins.getInstance().getRootDir(), INDEX_DIR), DebUtils.sha256(repo.getFqdn() + ":" + repo.getIncoming()) + ".idx"));
+	}
+
+	UploadIndex(File file) {
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * @return true if a file with this name and content was uploaded before
+	 */
+	public synchronized boolean contains(String name, String sha256, long size) {
+		return key(sha256, size).equals(uploaded.get(name));
+	}
+
+	/**
+	 * Records the file as uploaded
+	 */
+	public void add(String name, String sha256, long size) throws IOException {
+		synchronized (this) {
+			put(name, key(sha256, size));
+		}
+
+		synchronized (LOCK) {
+			File directory = file.getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Failed to create " + directory);
+			}
+
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			try {
+				writer.write(MessageFormat.format("{0} {1} {2}\n", sha256, String.valueOf(size), name));
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private void load() {
+		if (!file.isFile()) {
+			return;
+		}
+
+		synchronized (LOCK) {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				int lines = 0;
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						lines++;
+						String[] fields = line.split(" ", 3);
+						if (fields.length == 3) {
+							put(fields[2], fields[0] + " " + fields[1]);
+						}
+					}
+				} finally {
+					reader.close();
+				}
+
+				if (lines > Math.max(2 * uploaded.size(), MAX_ENTRIES)) {
+					compact();
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to read upload index " + file + ", uploading everything", e);
+			}
+		}
+	}
+
+	/**
+	 * Moves the file to the end of the eviction order
+	 */
+	private void put(String name, String key) {
+		uploaded.remove(name);
+		uploaded.put(name, key);
+	}
+
+	/**
+	 * Rewrites the file with the current records only, must be called under {@link #LOCK}
+	 */
+	private void compact() {
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+			try {
+				for (Entry<String, String> entry: uploaded.entrySet()) {
+					writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Failed to rename " + temp + " to " + file);
+			}
+		} catch (IOException e) {
+			temp.delete();
+			LOGGER.log(Level.WARNING, "Failed to compact upload index " + file, e);
+		}
+	}
+
+	private static String key(String sha256, long size) {
+		return sha256 + " " + size;
+	}
+}
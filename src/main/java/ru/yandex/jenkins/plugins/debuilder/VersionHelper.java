@@ -2,21 +2,28 @@ package ru.yandex.jenkins.plugins.debuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import jedi.functional.FunctionalPrimitives;
-
 /**
- * Encapsulates version information and helps with manipulation
- * 
+ * Encapsulates version information and helps with manipulation.
+ * Instances are immutable, the <b>with</b> methods return changed copies.
+ * For ordering versions see {@link DebianVersion}.
+ *
  * @author pupssman
- * 
+ *
  */
-public class VersionHelper {
+public final class VersionHelper {
+	private static final String GIT_PREFIX = "git";
+	private static final int GIT_REVISION_LENGTH = 7;
+	private static final long NOT_INT = Long.MIN_VALUE;
+
 	private final String separator;
 	private final List<String> versionElements;
 	private final int minorEntry;
 	private final int revisionEntry;
+	private final int gitRevisionEntry;
+	private final String string;
 
 	/**
 	 * As {@link VersionHelper#VersionHelper(String, String)} with "." separator
@@ -27,13 +34,13 @@ public class VersionHelper {
 	}
 
 	/**
-	 * As {@link VersionHelper#VersionHelper(String[])} with elements got by splitting string with given character.
+	 * As {@link VersionHelper#VersionHelper(String[])} with elements got by splitting string with given character,
+	 * the same way {@link String#split(String)} does.
 	 * @param version
 	 * @param separatorCharacter
 	 */
 	public VersionHelper(String version, char separatorCharacter) {
-		this(version.split("\\" + separatorCharacter), "" + separatorCharacter);
-
+		this(split(version, separatorCharacter), String.valueOf(separatorCharacter));
 	}
 
 	/**
@@ -42,45 +49,120 @@ public class VersionHelper {
 	 * @param versionElements
 	 */
 	public VersionHelper(String[] versionElements, String separator) {
-		this.versionElements = new ArrayList<String>(Arrays.asList(versionElements));
+		this(Arrays.asList(versionElements), separator);
+	}
+
+	private VersionHelper(List<String> versionElements, String separator) {
+		this.versionElements = Collections.unmodifiableList(new ArrayList<String>(versionElements));
 		this.separator = separator;
-		this.minorEntry = getMinorEntry();
-		this.revisionEntry = getRevisionEntry();
+
+		// the minor version is the last numeric element, the revisions are the first ones with their prefixes
+		int minor = -1;
+		int revision = -1;
+		int gitRevision = -1;
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < versionElements.size(); i++) {
+			String element = versionElements.get(i);
+
+			if (revision < 0 && element.startsWith("r")) {
+				revision = i;
+			}
+			if (gitRevision < 0 && element.startsWith(GIT_PREFIX)) {
+				gitRevision = i;
+			}
+			if (parseInt(element) != NOT_INT) {
+				minor = i;
+			}
+
+			if (i > 0) {
+				builder.append(separator);
+			}
+			builder.append(element);
+		}
+
+		this.minorEntry = minor;
+		this.revisionEntry = revision;
+		this.gitRevisionEntry = gitRevision;
+		this.string = builder.toString();
 	}
 
-	private int getMinorEntry() {
-		int lastNumeric = -1;
+	/**
+	 * Splits the version like {@link String#split(String)}: a version without separators is the only element,
+	 * otherwise trailing empty elements are dropped, so a version of separators only has no elements at all
+	 */
+	private static List<String> split(String version, char separatorCharacter) {
+		List<String> elements = new ArrayList<String>();
+		if (version.indexOf(separatorCharacter) < 0) {
+			elements.add(version);
+			return elements;
+		}
 
-		for (int i = versionElements.size() - 1; i >= 0; i--) {
-			try {
-				Integer.parseInt(versionElements.get(i));
-				lastNumeric = i;
-				break;
-			} catch (NumberFormatException e) {
-				// pass
+		int start = 0;
+		for (int i = 0; i <= version.length(); i++) {
+			if (i == version.length() || version.charAt(i) == separatorCharacter) {
+				elements.add(version.substring(start, i));
+				start = i + 1;
 			}
 		}
 
-		return lastNumeric;
+		for (int i = elements.size() - 1; i >= 0 && elements.get(i).length() == 0; i--) {
+			elements.remove(i);
+		}
+		return elements;
 	}
 
-	private int getRevisionEntry() {
-		for (int i = 0; i < versionElements.size(); i++) {
-			if (versionElements.get(i).startsWith("r")) {
-				return i;
+	/**
+	 * Parses the element as {@link Integer#parseInt(String)} of Java 7 and later would, without throwing:
+	 * an optional sign followed by decimal digits of any script, within the int range
+	 *
+	 * @return the value or {@link #NOT_INT}
+	 */
+	private static long parseInt(String element) {
+		int length = element.length();
+		boolean negative = length > 0 && element.charAt(0) == '-';
+		int i = length > 0 && (negative || element.charAt(0) == '+') ? 1 : 0;
+		if (i == length) {
+			return NOT_INT;
+		}
+
+		long value = 0;
+		for (; i < length; i++) {
+			int digit = Character.digit(element.charAt(i), 10);
+			if (digit < 0) {
+				return NOT_INT;
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				return NOT_INT;
 			}
 		}
 
-		return -1;
+		value = negative ? -value : value;
+		return value > Integer.MAX_VALUE ? NOT_INT : value;
 	}
 
-	public void setRevision(String revision) {
-		String revisionElement = "r" + revision;
-		if (revisionEntry >= 0) {
-			versionElements.set(revisionEntry, revisionElement);
+	/**
+	 * @return copy of this version with the element at given index replaced, or with the element added at the end if the index is negative
+	 */
+	private VersionHelper withElement(int index, String element) {
+		List<String> elements = new ArrayList<String>(versionElements);
+		if (index >= 0) {
+			elements.set(index, element);
 		} else {
-			versionElements.add(revisionElement);
+			elements.add(element);
 		}
+		return new VersionHelper(elements, separator);
+	}
+
+	/**
+	 * Imprints a revision into a copy of this version.
+	 * If there is no revision element, it is added at the end and becomes the revision of the copy.
+	 * @param revision
+	 *            The revision, without the <b>r</b> prefix
+	 * @return the new version
+	 */
+	public VersionHelper withRevision(String revision) {
+		return withElement(revisionEntry, "r" + revision);
 	}
 
 	/**
@@ -95,33 +177,46 @@ public class VersionHelper {
 	}
 
 	/**
-	 * @return last minor version imprinted in this version or <b>0</b> if no minor version known
+	 * Imprints an abbreviated git commit into a copy of this version
+	 * @param commit
+	 *            Full or abbreviated SHA-1 of the commit
+	 * @return the new version
 	 */
-	public int getMinorVersion() {
-		if (minorEntry >= 0) {
-			return Integer.parseInt(versionElements.get(minorEntry));
+	public VersionHelper withGitRevision(String commit) {
+		return withElement(gitRevisionEntry, GIT_PREFIX + commit.substring(0, Math.min(GIT_REVISION_LENGTH, commit.length())));
+	}
+
+	/**
+	 * @return last abbreviated git commit imprinted in this version or <b>empty string</b> if no commit known
+	 */
+	public String getGitRevision() {
+		if (gitRevisionEntry >= 0) {
+			return versionElements.get(gitRevisionEntry).substring(GIT_PREFIX.length());
 		} else {
-			return 0;
+			return "";
 		}
 	}
 
 	/**
-	 * Replace the last numeric element.
+	 * @return last minor version imprinted in this version or <b>0</b> if no minor version known
+	 */
+	public int getMinorVersion() {
+		return minorEntry >= 0 ? (int) parseInt(versionElements.get(minorEntry)) : 0;
+	}
+
+	/**
+	 * Replace the last numeric element in a copy of this version.
 	 * If there is no numeric element, add the new version at the end.
 	 * @param newVersion
 	 *            The new minor version
+	 * @return the new version
 	 */
-	public void setMinorVersion(int newVersion) {
-		String versionElement = Integer.toString(newVersion);
-		if (minorEntry >= 0) {
-			versionElements.set(minorEntry, versionElement);
-		} else {
-			versionElements.add(versionElement);
-		}
+	public VersionHelper withMinorVersion(int newVersion) {
+		return withElement(minorEntry, Integer.toString(newVersion));
 	}
 
 	public String toString() {
-		return FunctionalPrimitives.join(versionElements, separator);
+		return string;
 	}
 
 }
@@ -0,0 +1,98 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ChangelogParser} against the stanza layouts dpkg-parsechangelog accepts and the ones it rejects
+ */
+public class ChangelogParserTest {
+	private static final String HEADER = "foo (1.2-3) unstable; urgency=medium\n";
+	private static final String TRAILER = " -- Jenkins <jenkins@example.com>  Fri, 12 Oct 2012 00:00:00 +0000\n";
+
+	@Test
+	public void headerFieldsAreParsed() throws IOException {
+		ChangelogEntry entry = parse("foo-bar+baz (2:1.0~rc1-0ubuntu1) unstable experimental; urgency=high, binary-only=yes\n\n  * Change\n\n" + TRAILER);
+
+		assertEquals("foo-bar+baz", entry.getSource());
+		assertEquals("2:1.0~rc1-0ubuntu1", entry.getVersion());
+		assertEquals("unstable experimental", entry.getDistribution());
+		assertEquals("high", entry.getUrgency());
+	}
+
+	@Test
+	public void urgencyMayBeMissing() throws IOException {
+		assertEquals("", parse("foo (1.0) unstable; binary-only=yes\n\n  * Change\n\n" + TRAILER).getUrgency());
+	}
+
+	@Test
+	public void trailerVariants() throws IOException {
+		ChangelogEntry entry = parse(HEADER + "\n  * Change\n\n" + TRAILER);
+		assertEquals("Jenkins <jenkins@example.com>", entry.getMaintainer());
+		assertEquals("Fri, 12 Oct 2012 00:00:00 +0000", entry.getDate());
+
+		// a single space before the date and trailing whitespace are tolerated, like dpkg does
+		entry = parse(HEADER + "\n  * Change\n\n -- Иван Калинин <pupssman@example.com> Fri, 12 Oct 2012 00:00:00 +0400  \n");
+		assertEquals("Иван Калинин <pupssman@example.com>", entry.getMaintainer());
+		assertEquals("Fri, 12 Oct 2012 00:00:00 +0400", entry.getDate());
+	}
+
+	@Test
+	public void onlyTheFirstStanzaIsRead() throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(HEADER + "\n  * New\n\n" + TRAILER + "\n"
+				+ "foo (1.2-2) unstable; urgency=low\n\n  * Old\n\n -- Someone <someone@example.com>  Thu, 11 Oct 2012 00:00:00 +0000\n"));
+
+		ChangelogEntry entry = ChangelogParser.parse(reader, "changelog");
+		assertEquals("1.2-3", entry.getVersion());
+		assertEquals("  * New", entry.getChanges());
+		// the rest of the file is left unread
+		assertEquals("", reader.readLine());
+		assertEquals("foo (1.2-2) unstable; urgency=low", reader.readLine());
+	}
+
+	@Test
+	public void blankAndContinuationLinesOfChangesAreKept() throws IOException {
+		ChangelogEntry entry = parse("\n\n" + HEADER + "\n\n  [ alice ]\n  * First change\n    continued here\n\n  [ bob ]\n  * Second change\n\n\n" + TRAILER);
+
+		assertEquals("foo", entry.getSource());
+		assertEquals("  [ alice ]\n  * First change\n    continued here\n\n  [ bob ]\n  * Second change", entry.getChanges());
+	}
+
+	@Test
+	public void emptyBodyIsAllowed() throws IOException {
+		assertEquals("", parse(HEADER + "\n" + TRAILER).getChanges());
+	}
+
+	@Test
+	public void malformedChangelogsAreRejected() {
+		assertRejected("", "changelog is empty");
+		assertRejected("\n  \n", "changelog is empty");
+		assertRejected("foo 1.0 unstable; urgency=low\n\n  * Change\n\n" + TRAILER, "expected changelog header");
+		assertRejected("foo (1.0) unstable urgency=low\n\n  * Change\n\n" + TRAILER, "expected changelog header");
+		assertRejected("foo (1.0 1) unstable; urgency=low\n\n  * Change\n\n" + TRAILER, "expected changelog header");
+		assertRejected("  * Change\n" + HEADER, "expected changelog header");
+		assertRejected(HEADER + "\n  * Change\n\n -- Jenkins jenkins@example.com  Fri, 12 Oct 2012 00:00:00 +0000\n", "badly formatted trailer");
+		assertRejected(HEADER + "\n  * Change\n\n -- Jenkins <jenkins@example.com>\n", "badly formatted trailer");
+		assertRejected(HEADER + "\n  * Change\n", "no trailer line found for version 1.2-3");
+	}
+
+	private static ChangelogEntry parse(String text) throws IOException {
+		return ChangelogParser.parse(new BufferedReader(new StringReader(text)), "changelog");
+	}
+
+	private static void assertRejected(String text, String message) {
+		try {
+			parse(text);
+			fail("<" + text + "> should be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ru.yandex.jenkins.plugins.debuilder.DebianPackageBuilder.Change;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Checks {@link ChangelogWriter} against the stanzas <b>dch -b --newVersion</b> and a <b>dch --append</b> per change produce.
+ * The bullets of the golden files in the changelog directory are wrapped by Text::Wrap with the settings of dch.
+ */
+public class ChangelogWriterTest {
+	private static final Date DATE = new Date(1350000000000L);
+	private static final String EMAIL = "jenkins@example.com";
+	private static final String VERSION_MESSAGE = "Build #12 started by an SCM change";
+
+	private TimeZone timeZone;
+
+	@Before
+	public void useUtc() {
+		timeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+	}
+
+	@After
+	public void restoreTimeZone() {
+		TimeZone.setDefault(timeZone);
+	}
+
+	@Test
+	public void authorsGetABlockWheneverTheyChange() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(new Change("alice", "Fix the build"));
+		changes.add(new Change("alice", "Add tests"));
+		changes.add(new Change("bob", "Update docs"));
+		changes.add(new Change("alice", "Revert the docs"));
+
+		assertStanza("multiple-authors", new ChangelogWriter("foo", "1.2-3", "Jenkins", EMAIL, VERSION_MESSAGE, changes));
+	}
+
+	@Test
+	public void linesAreWrappedAt79Columns() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(new Change("Jenkins", "Merge the upload index with the pool check so that orig tarballs accepted by the archive are not sent again "
+				+ "on every revision of the package"));
+		changes.add(new Change("Jenkins", "Bump https://example.com/a/very/long/path/that/does/not/fit/on/a/single/changelog/line/at/all/really"));
+		changes.add(new Change("Jenkins", "Exactly seventy-five characters of text fill the line up to the limit of 79"));
+
+		assertStanza("wrapping", new ChangelogWriter("foo", "1.2-3", "Jenkins", EMAIL, VERSION_MESSAGE, changes));
+	}
+
+	@Test
+	public void nonAsciiIsWrappedByCharacters() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(new Change("Иван Калинин", "Исправлена сборка пакета при пустом списке изменений, "
+				+ "теперь версия увеличивается только если есть изменения в модуле"));
+
+		assertStanza("non-ascii", new ChangelogWriter("foo", "2.0-1", "Jenkins", EMAIL, "Сборка #7", changes));
+	}
+
+	@Test
+	public void multiLineMessagesKeepTheirLines() throws IOException {
+		List<Change> changes = new ArrayList<Change>();
+		changes.add(new Change("Jenkins", "First line of the commit\n\nSecond line with details\nThird line\n"));
+
+		assertStanza("multi-line", new ChangelogWriter("foo", "1.2-3", "Jenkins", EMAIL, VERSION_MESSAGE, changes));
+	}
+
+	private void assertStanza(String golden, ChangelogWriter writer) throws IOException {
+		String expected = Resources.toString(getClass().getResource("changelog/" + golden), Charsets.UTF_8);
+		assertEquals(expected, writer.renderStanza(DATE));
+	}
+}
@@ -0,0 +1,86 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link DebianVersion} against the outcome of <b>dpkg --compare-versions</b> for the corner cases of verrevcmp
+ */
+public class DebianVersionTest {
+
+	@Test
+	public void tildeSortsBeforeTheEnd() {
+		assertLess("1.0~rc1", "1.0");
+		assertLess("1.0~~", "1.0~");
+		assertLess("1.0~~a", "1.0~");
+		assertLess("1.0-1~bpo1", "1.0-1");
+		assertLess("1.0~", "1.0.");
+	}
+
+	@Test
+	public void leadingZerosAreIgnored() {
+		assertSame("1.01", "1.1");
+		assertSame("1.001", "1.1");
+		assertSame("1.0", "1.00");
+		assertLess("1.9", "1.010");
+		assertSame("1.0", "1.0-0");
+	}
+
+	@Test
+	public void lettersSortBeforeNonLetters() {
+		assertLess("1.0", "1.0a");
+		assertLess("1.0a", "1.0+");
+		assertLess("1.0z", "1.0.");
+		assertLess("1.0A", "1.0a");
+		assertLess("1.0+", "1.0.");
+		assertLess("1.0", "1.0.");
+	}
+
+	@Test
+	public void epochWins() {
+		assertLess("9.9", "1:0.1");
+		assertLess("1:9", "2:1");
+		assertSame("0:1.0", "1.0");
+		assertSame("01:1.0", "1:1.0");
+	}
+
+	@Test
+	public void revisionIsComparedAfterUpstream() {
+		assertLess("1.0-2", "1.0-10");
+		assertLess("1.0-9", "1.0.1-1");
+		assertLess("1.0", "1.0-1");
+		assertEquals("1.0-beta", DebianVersion.parse("1.0-beta-1").getUpstream());
+		assertEquals("1", DebianVersion.parse("1.0-beta-1").getRevision());
+	}
+
+	@Test
+	public void malformedVersionsAreRejected() {
+		assertRejected("1.0-");
+		assertRejected("-1");
+		assertRejected(":1.0");
+		assertRejected("a:1.0");
+		assertRejected("");
+	}
+
+	private static void assertLess(String lower, String higher) {
+		assertTrue(lower + " < " + higher, DebianVersion.parse(lower).compareTo(DebianVersion.parse(higher)) < 0);
+		assertTrue(higher + " > " + lower, DebianVersion.parse(higher).compareTo(DebianVersion.parse(lower)) > 0);
+	}
+
+	private static void assertSame(String a, String b) {
+		assertEquals(a + " = " + b, DebianVersion.parse(a), DebianVersion.parse(b));
+		assertEquals(a + " and " + b + " hash codes", DebianVersion.parse(a).hashCode(), DebianVersion.parse(b).hashCode());
+	}
+
+	private static void assertRejected(String version) {
+		try {
+			DebianVersion.parse(version);
+			fail("<" + version + "> should be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
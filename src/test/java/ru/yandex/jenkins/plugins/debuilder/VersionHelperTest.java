@@ -0,0 +1,108 @@
+package ru.yandex.jenkins.plugins.debuilder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link VersionHelper} against the behaviour of its earlier version, which used {@link String#split(String)} and {@link Integer#parseInt(String)}
+ */
+public class VersionHelperTest {
+
+	@Test
+	public void numbersAreRecognizedLikeIntegerParseInt() {
+		String[] elements = {"0", "7", "007", "+4", "-4", "+", "-", "", "4+", "1e3", "0x10", " 4", "2147483647", "2147483648", "-2147483648", "-2147483649",
+				"99999999999999999999", "٤"};
+
+		for (String element: elements) {
+			int expected;
+			try {
+				expected = Integer.parseInt(element);
+			} catch (NumberFormatException e) {
+				expected = 0;
+			}
+			assertEquals("<" + element + ">", expected, new VersionHelper("a." + element).getMinorVersion());
+		}
+	}
+
+	@Test
+	public void signedMinorVersionIsReplaced() {
+		assertEquals("1.5", new VersionHelper("1.+4").withMinorVersion(5).toString());
+		assertEquals("1.-3", new VersionHelper("1.-4").withMinorVersion(-3).toString());
+		assertEquals("2.+.r5", new VersionHelper("1.+.r5").withMinorVersion(2).toString());
+	}
+
+	@Test
+	public void elementsAreSplitLikeStringSplit() {
+		String[] versions = {"", ".", "...", "1", "1.0", "1.0.", "1.0..", "1..2", ".5", "abc"};
+
+		for (String version: versions) {
+			StringBuilder expected = new StringBuilder();
+			String[] elements = version.split("\\.");
+			for (int i = 0; i < elements.length; i++) {
+				expected.append(i > 0 ? "." : "").append(elements[i]);
+			}
+			assertEquals("<" + version + ">", expected.toString(), new VersionHelper(version).toString());
+		}
+
+		assertEquals(".1", new VersionHelper("").withMinorVersion(1).toString());
+		assertEquals("1", new VersionHelper("...").withMinorVersion(1).toString());
+		assertEquals("1.1", new VersionHelper("1.0.").withMinorVersion(1).toString());
+		assertEquals("1..3", new VersionHelper("1..2").withMinorVersion(3).toString());
+		assertEquals(".6", new VersionHelper(".5").withMinorVersion(6).toString());
+		assertEquals("abc.1", new VersionHelper("abc").withMinorVersion(1).toString());
+	}
+
+	@Test
+	public void otherSeparators() {
+		VersionHelper helper = new VersionHelper("1-2-r10", '-');
+		assertEquals(2, helper.getMinorVersion());
+		assertEquals("10", helper.getRevision());
+		assertEquals("1-3-r11", helper.withMinorVersion(3).withRevision("11").toString());
+		assertEquals("1~2", new VersionHelper(new String[] {"1", "2"}, "~").toString());
+	}
+
+	@Test
+	public void revisionIsReplacedOrAdded() {
+		VersionHelper helper = new VersionHelper("1.0.r100");
+		assertEquals("100", helper.getRevision());
+		assertEquals("1.0.r200", helper.withRevision("200").toString());
+
+		helper = new VersionHelper("1.0");
+		assertEquals("", helper.getRevision());
+		// unlike before, the added element is the revision of the new version, so it is replaced on the next call
+		assertEquals("5", helper.withRevision("5").getRevision());
+		assertEquals("1.0.r6", helper.withRevision("5").withRevision("6").toString());
+	}
+
+	@Test
+	public void gitRevisionIsAbbreviated() {
+		VersionHelper helper = new VersionHelper("1.0.gitabcdef0");
+		assertEquals("abcdef0", helper.getGitRevision());
+		assertEquals("1.0.git0123456", helper.withGitRevision("0123456789abcdef").toString());
+		assertEquals("1.0.gitabc", new VersionHelper("1.0").withGitRevision("abc").toString());
+		assertEquals("", new VersionHelper("1.0").getGitRevision());
+	}
+
+	@Test
+	public void minorVersionIsTheLastNumericElement() {
+		VersionHelper helper = new VersionHelper("1.2.r100.3a");
+		assertEquals(2, helper.getMinorVersion());
+		assertEquals("1.3.r100.3a", helper.withMinorVersion(3).toString());
+		assertEquals(0, new VersionHelper("r5.gitabc").getMinorVersion());
+		assertEquals("r5.gitabc.1", new VersionHelper("r5.gitabc").withMinorVersion(1).toString());
+	}
+
+	@Test
+	public void helpersAreNotChanged() {
+		VersionHelper helper = new VersionHelper("1.2.r100");
+		helper.withMinorVersion(3);
+		helper.withRevision("200");
+		helper.withGitRevision("abcdef0");
+
+		assertEquals("1.2.r100", helper.toString());
+		assertEquals(2, helper.getMinorVersion());
+		assertEquals("100", helper.getRevision());
+		assertEquals("", helper.getGitRevision());
+	}
+}